@@ -0,0 +1,156 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2020. James K Polk
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package com.github.jameskpolk;
+
+import java.math.BigInteger;
+import java.security.spec.RSAPrivateCrtKeySpec;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A single entry point for recovering the CRT parameters from (n, e, d) that tries the
+ * cheapest method first. The closed form of <code>RSACrtFromDMethod3</code> costs a
+ * division and a square root but only applies when d = inv(e) mod phi(n); when it does
+ * not apply the HAC method of <code>RSACrtFromD.findFactor()</code> is used instead. That
+ * splits any product of two distinct odd primes with a consistent d, and gives up after
+ * a bounded number of bases on anything else, such as a prime or prime-power n, so
+ * untrusted input cannot hang the caller. The path each key took and the time it took
+ * are recorded.
+ * <p>
+ * Instances are thread-safe.
+ */
+public class AdaptiveCrtRecovery {
+
+    /**
+     * Bases tried by the HAC method before concluding that n is not a product of two
+     * distinct odd primes; a valid key fails all of them with probability 2**-64.
+     */
+    private static final int MAX_BASES = 64;
+
+    public enum Path {
+        /**
+         * The closed form of <code>RSACrtFromDMethod3</code>.
+         */
+        CLOSED_FORM,
+        /**
+         * The closed form failed and <code>RSACrtFromD.findFactor()</code> was used.
+         */
+        HAC
+    }
+
+    /**
+     * The recovered key together with how it was recovered.
+     */
+    public static class Result {
+        private final RSAPrivateCrtKeySpec keySpec;
+        private final Path path;
+        private final long elapsedNanos;
+
+        Result(RSAPrivateCrtKeySpec keySpec, Path path, long elapsedNanos) {
+            this.keySpec = keySpec;
+            this.path = path;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        public RSAPrivateCrtKeySpec getKeySpec() {
+            return keySpec;
+        }
+
+        public Path getPath() {
+            return path;
+        }
+
+        /**
+         * @return the total time spent on this key, including any failed closed-form attempt.
+         */
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+    }
+
+    private final LongAdder[] counts = new LongAdder[Path.values().length];
+    private final LongAdder[] nanos = new LongAdder[Path.values().length];
+
+    public AdaptiveCrtRecovery() {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = new LongAdder();
+            nanos[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Recover all the CRT parameters from e, d, and n.
+     *
+     * @param n the RSA modulus.
+     * @param e the RSA public exponent.
+     * @param d the RSA private exponent.
+     * @return the key and the path taken.
+     * @throws IllegalArgumentException if ed - 1 is not a multiple of lambda(n), or n could
+     *                                  not be split.
+     */
+    public Result recover(BigInteger n, BigInteger e, BigInteger d) {
+        long start = System.nanoTime();
+        Path path = Path.CLOSED_FORM;
+        BigInteger p = RSACrtFromDMethod3.solveForFactor(n, e, d);
+        if (p == null) {
+            path = Path.HAC;
+            p = RSACrtFromD.findFactor(e, d, n, MAX_BASES);
+            if (p == null) {
+                throw new IllegalArgumentException("n could not be split");
+            }
+        }
+        RSAPrivateCrtKeySpec keySpec = RSACrtFromD.createCrtKeySpec(n, e, d, p);
+        long elapsed = System.nanoTime() - start;
+        counts[path.ordinal()].increment();
+        nanos[path.ordinal()].add(elapsed);
+        return new Result(keySpec, path, elapsed);
+    }
+
+    /**
+     * @return the number of keys recovered by <code>path</code>.
+     */
+    public long getCount(Path path) {
+        return counts[path.ordinal()].sum();
+    }
+
+    /**
+     * @return the total time spent on keys recovered by <code>path</code>.
+     */
+    public long getTotalNanos(Path path) {
+        return nanos[path.ordinal()].sum();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (Path path : Path.values()) {
+            long count = getCount(path);
+            long total = getTotalNanos(path);
+            sb.append(String.format("%s: %d keys, mean %.3f ms%n", path, count,
+                    count == 0 ? 0.0 : total / 1e6 / count));
+        }
+        return sb.toString();
+    }
+}
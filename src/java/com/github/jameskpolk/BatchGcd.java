@@ -0,0 +1,290 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2020. James K Polk
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package com.github.jameskpolk;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.InvalidKeyException;
+import java.security.interfaces.RSAPublicKey;
+import java.security.spec.RSAPrivateCrtKeySpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+/**
+ * Find RSA moduli that share a prime with another modulus in the same collection, using
+ * Bernstein's batch gcd: a product tree of all the moduli followed by a remainder tree
+ * that reduces the product modulo each n*n. For every modulus this yields
+ * gcd(n, product of all the others) in quasi-linear time instead of the quadratic cost of
+ * pairwise gcds.
+ * <p>
+ * Each level of the trees is computed in parallel. Levels are kept in memory until a
+ * configurable budget is used up; after that they are spilled to temporary files and read
+ * back on the way down the remainder tree.
+ */
+public class BatchGcd {
+
+    /**
+     * A modulus found to share a factor, with its complete recovered key.
+     */
+    public static class SharedFactor {
+        private final int index;
+        private final RSAPrivateCrtKeySpec keySpec;
+
+        SharedFactor(int index, RSAPrivateCrtKeySpec keySpec) {
+            this.index = index;
+            this.keySpec = keySpec;
+        }
+
+        /**
+         * @return the position of the key in the input list.
+         */
+        public int getIndex() {
+            return index;
+        }
+
+        public RSAPrivateCrtKeySpec getKeySpec() {
+            return keySpec;
+        }
+    }
+
+    /**
+     * One level of the product tree, either in memory or spilled to a file.
+     */
+    private static class Level {
+        private BigInteger[] values;
+        private Path file;
+
+        Level(BigInteger[] values) {
+            this.values = values;
+        }
+
+        BigInteger[] get() {
+            if (values != null) {
+                return values;
+            }
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+                BigInteger[] result = new BigInteger[in.readInt()];
+                for (int i = 0; i < result.length; i++) {
+                    byte[] bytes = new byte[in.readInt()];
+                    in.readFully(bytes);
+                    result[i] = new BigInteger(bytes);
+                }
+                return result;
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }
+
+        void spill(Path directory) throws IOException {
+            file = Files.createTempFile(directory, "batchgcd", ".level");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+                out.writeInt(values.length);
+                for (BigInteger value : values) {
+                    byte[] bytes = value.toByteArray();
+                    out.writeInt(bytes.length);
+                    out.write(bytes);
+                }
+            }
+            values = null;
+        }
+
+        void delete() throws IOException {
+            if (file != null) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    private final long memoryBudgetBytes;
+    private final Path spillDirectory;
+
+    /**
+     * Keep up to 256 MiB of product-tree levels in memory, spilling the rest to the
+     * default temporary-file directory.
+     */
+    public BatchGcd() {
+        this(256L << 20, null);
+    }
+
+    /**
+     * @param memoryBudgetBytes the size of product-tree levels kept in memory.
+     * @param spillDirectory    where spilled levels go, or null for the default temporary-file directory.
+     */
+    public BatchGcd(long memoryBudgetBytes, Path spillDirectory) {
+        this.memoryBudgetBytes = memoryBudgetBytes;
+        this.spillDirectory = spillDirectory;
+    }
+
+    /**
+     * Compute gcd(n, product of all the other moduli) for every modulus.
+     *
+     * @param moduli the RSA moduli.
+     * @return for each modulus its gcd with the product of the others; 1 means no shared factor.
+     */
+    public BigInteger[] sharedFactors(List<BigInteger> moduli) throws IOException {
+        int count = moduli.size();
+        if (count < 2) {
+            BigInteger[] result = new BigInteger[count];
+            Arrays.fill(result, BigInteger.ONE);
+            return result;
+        }
+        Path directory = (spillDirectory != null) ? spillDirectory : Path.of(System.getProperty("java.io.tmpdir"));
+        List<Level> levels = new ArrayList<>();
+        long bytesInMemory = 0;
+        try {
+            // Up the product tree
+            BigInteger[] current = moduli.toArray(new BigInteger[0]);
+            levels.add(new Level(current));
+            bytesInMemory += sizeOf(current);
+            while (current.length > 1) {
+                BigInteger[] below = current;
+                current = IntStream.range(0, (below.length + 1) / 2)
+                        .parallel()
+                        .mapToObj(i -> (2 * i + 1 < below.length) ? below[2 * i].multiply(below[2 * i + 1]) : below[2 * i])
+                        .toArray(BigInteger[]::new);
+                Level level = new Level(current);
+                long size = sizeOf(current);
+                if (current.length > 1 && bytesInMemory + size > memoryBudgetBytes) {
+                    level.spill(directory);
+                } else {
+                    bytesInMemory += size;
+                }
+                levels.add(level);
+            }
+
+            // Down the remainder tree: each node is reduced mod the square of itself
+            BigInteger[] remainders = current;
+            for (int l = levels.size() - 2; l >= 0; l--) {
+                BigInteger[] nodes = levels.get(l).get();
+                BigInteger[] above = remainders;
+                remainders = IntStream.range(0, nodes.length)
+                        .parallel()
+                        .mapToObj(i -> above[i / 2].mod(nodes[i].multiply(nodes[i])))
+                        .toArray(BigInteger[]::new);
+            }
+
+            BigInteger[] leaves = remainders;
+            return IntStream.range(0, count)
+                    .parallel()
+                    .mapToObj(i -> leaves[i].divide(moduli.get(i)).gcd(moduli.get(i)))
+                    .toArray(BigInteger[]::new);
+        } finally {
+            for (Level level : levels) {
+                level.delete();
+            }
+        }
+    }
+
+    /**
+     * Scan a collection of RSA public keys for moduli that share a prime and recover the
+     * complete private key of every such modulus.
+     *
+     * @param keys the RSA public keys.
+     * @return the keys whose modulus shares a factor with another one, in input order.
+     */
+    public List<SharedFactor> scan(List<RSAPublicKey> keys) throws IOException {
+        List<BigInteger> moduli = new ArrayList<>(keys.size());
+        for (RSAPublicKey key : keys) {
+            moduli.add(key.getModulus());
+        }
+        BigInteger[] gcds = sharedFactors(moduli);
+        List<Integer> vulnerable = new ArrayList<>();
+        for (int i = 0; i < gcds.length; i++) {
+            if (!gcds[i].equals(BigInteger.ONE)) {
+                vulnerable.add(i);
+            }
+        }
+        List<SharedFactor> result = new ArrayList<>();
+        for (int i : vulnerable) {
+            BigInteger n = moduli.get(i);
+            BigInteger factor = gcds[i];
+            // Both primes of n are shared, so fall back to pairwise gcds among the few hits.
+            for (int j = 0; factor.equals(n) && j < vulnerable.size(); j++) {
+                BigInteger g = n.gcd(moduli.get(vulnerable.get(j)));
+                if (!g.equals(BigInteger.ONE) && !g.equals(n)) {
+                    factor = g;
+                }
+            }
+            if (factor.equals(n)) {
+                continue; // n is only ever duplicated, which reveals nothing
+            }
+            try {
+                RSAPrivateCrtKeySpec keySpec = new RsaPrivateCrtBuilder()
+                        .setModulus(n)
+                        .setPublicExponent(keys.get(i).getPublicExponent())
+                        .setPrimeP(factor)
+                        .buildKeySpec();
+                result.add(new SharedFactor(i, keySpec));
+            } catch (InvalidKeyException ex) {
+                // n is not a two-prime modulus with an invertible e; nothing to report
+            }
+        }
+        return result;
+    }
+
+    private static long sizeOf(BigInteger[] values) {
+        long size = 0;
+        for (BigInteger value : values) {
+            size += (value.bitLength() >>> 3) + 1;
+        }
+        return size;
+    }
+
+    /**
+     * Build some moduli from a small pool of primes, as a weak RNG might, and find the
+     * ones that share a prime.
+     *
+     * @param args these are ignored.
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+        Random random = new Random();
+        List<BigInteger> primes = new ArrayList<>();
+        for (int i = 0; i < 400; i++) {
+            primes.add(BigInteger.probablePrime(512, random));
+        }
+        List<BigInteger> moduli = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            moduli.add(primes.get(random.nextInt(primes.size())).multiply(primes.get(random.nextInt(primes.size()))));
+        }
+        BigInteger[] gcds = new BatchGcd().sharedFactors(moduli);
+        for (int i = 0; i < gcds.length; i++) {
+            if (!gcds[i].equals(BigInteger.ONE)) {
+                System.out.printf("modulus #%d shares a factor%n", i);
+            }
+        }
+    }
+}
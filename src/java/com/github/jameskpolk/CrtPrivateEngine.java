@@ -0,0 +1,183 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2020. James K Polk
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package com.github.jameskpolk;
+
+import javax.crypto.Cipher;
+import java.math.BigInteger;
+import java.security.SecureRandom;
+import java.security.interfaces.RSAPrivateCrtKey;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.IntStream;
+
+/**
+ * Raw RSA private operations, c**d mod n, for a single CRT key, without the JCE's
+ * per-operation <code>Cipher.init()</code>, byte conversions and padding checks. The key's
+ * CRT values are read once; each operation is an exponentiation mod p and mod q followed by
+ * Garner's recombination.
+ * <p>
+ * The half-size exponentiations use <code>BigInteger.modPow()</code>, whose Montgomery
+ * multiplication is a HotSpot intrinsic; a <code>MontgomeryContext</code> with fixed-window
+ * exponent tables was measured at a third to a half of its speed. The gain over the JCE
+ * therefore comes from the leaner path and from <code>applyAll()</code> running a batch on
+ * all processors.
+ * <p>
+ * With a <code>SecureRandom</code> the input is blinded by a random r**e and unblinded by
+ * 1/r afterwards; the blinding pair is refreshed by squaring after every operation, so
+ * blinding costs four multiplications mod n rather than an inversion.
+ * <p>
+ * Instances are thread-safe; concurrent operations each take a distinct blinding pair.
+ */
+public class CrtPrivateEngine {
+
+    private final BigInteger n;
+    private final BigInteger p;
+    private final BigInteger q;
+    private final BigInteger dp;
+    private final BigInteger dq;
+    private final BigInteger qInv;
+    private final AtomicReference<BigInteger[]> blinding;
+
+    public CrtPrivateEngine(RSAPrivateCrtKey key) {
+        this(key, null);
+    }
+
+    /**
+     * @param key            the key; its CRT parameters must be consistent.
+     * @param blindingRandom the source of the blinding factor, or null for no blinding.
+     */
+    public CrtPrivateEngine(RSAPrivateCrtKey key, SecureRandom blindingRandom) {
+        this.n = key.getModulus();
+        this.p = key.getPrimeP();
+        this.q = key.getPrimeQ();
+        this.dp = key.getPrimeExponentP();
+        this.dq = key.getPrimeExponentQ();
+        this.qInv = key.getCrtCoefficient();
+        if (blindingRandom == null) {
+            this.blinding = null;
+        } else {
+            BigInteger r;
+            do {
+                r = new BigInteger(n.bitLength() - 1, blindingRandom);
+            } while (r.signum() == 0 || !r.gcd(n).equals(BigInteger.ONE));
+            this.blinding = new AtomicReference<>(new BigInteger[]{r.modPow(key.getPublicExponent(), n), r.modInverse(n)});
+        }
+    }
+
+    /**
+     * The raw RSA private operation, decryption or signature, without any padding.
+     *
+     * @param c an integer in [0, n).
+     * @return c**d mod n.
+     */
+    public BigInteger apply(BigInteger c) {
+        if (c.signum() < 0 || c.compareTo(n) >= 0) {
+            throw new IllegalArgumentException("input must be in [0, n)");
+        }
+        BigInteger[] pair = null;
+        if (blinding != null) {
+            pair = blinding.getAndUpdate(b -> new BigInteger[]{b[0].multiply(b[0]).mod(n), b[1].multiply(b[1]).mod(n)});
+            c = c.multiply(pair[0]).mod(n);
+        }
+        BigInteger mp = c.modPow(dp, p);
+        BigInteger mq = c.modPow(dq, q);
+        // Garner: m = mq + q * (qInv * (mp - mq) mod p)
+        BigInteger h = mp.subtract(mq).multiply(qInv).mod(p);
+        BigInteger m = h.multiply(q).add(mq);
+        if (pair != null) {
+            m = m.multiply(pair[1]).mod(n);
+        }
+        return m;
+    }
+
+    /**
+     * Apply the private operation to many inputs in parallel on the common fork-join pool.
+     *
+     * @param inputs integers in [0, n).
+     * @return the results, in the same order.
+     */
+    public BigInteger[] applyAll(BigInteger[] inputs) {
+        BigInteger[] results = new BigInteger[inputs.length];
+        IntStream.range(0, inputs.length).parallel().forEach(i -> results[i] = apply(inputs[i]));
+        return results;
+    }
+
+    public BigInteger getModulus() {
+        return n;
+    }
+
+    /**
+     * Compare the throughput of this engine, one operation at a time and in parallel
+     * batches, with the JCE "RSA/ECB/NoPadding" cipher on the same key.
+     *
+     * @param args key size and number of operations; default 2048 and 2000.
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+        int keySize = (args.length > 0) ? Integer.parseInt(args[0]) : 2048;
+        int ops = (args.length > 1) ? Integer.parseInt(args[1]) : 2000;
+        RSAPrivateCrtKey key = new TestKeyCorpus().keys(1, keySize, TestKeyCorpus.F4, 1).get(0);
+        BigInteger n = key.getModulus();
+        Random random = new Random(1);
+        BigInteger[] inputs = new BigInteger[ops];
+        byte[][] encodedInputs = new byte[ops][];
+        for (int i = 0; i < ops; i++) {
+            inputs[i] = new BigInteger(keySize - 1, random);
+            encodedInputs[i] = inputs[i].toByteArray();
+        }
+        Cipher cipher = Cipher.getInstance("RSA/ECB/NoPadding");
+        CrtPrivateEngine engine = new CrtPrivateEngine(key);
+        CrtPrivateEngine blindedEngine = new CrtPrivateEngine(key, new SecureRandom());
+        for (int round = 0; round < 3; round++) {
+            long start = System.nanoTime();
+            for (byte[] input : encodedInputs) {
+                cipher.init(Cipher.DECRYPT_MODE, key);
+                cipher.doFinal(input);
+            }
+            long jce = System.nanoTime() - start;
+            start = System.nanoTime();
+            BigInteger[] results = new BigInteger[ops];
+            for (int i = 0; i < ops; i++) {
+                results[i] = engine.apply(inputs[i]);
+            }
+            long single = System.nanoTime() - start;
+            start = System.nanoTime();
+            BigInteger[] batchResults = engine.applyAll(inputs);
+            long batch = System.nanoTime() - start;
+            start = System.nanoTime();
+            BigInteger[] blindedResults = blindedEngine.applyAll(inputs);
+            long blinded = System.nanoTime() - start;
+            for (int i = 0; i < ops; i++) {
+                if (!results[i].modPow(key.getPublicExponent(), n).equals(inputs[i])
+                        || !batchResults[i].equals(results[i]) || !blindedResults[i].equals(results[i])) {
+                    throw new AssertionError("wrong result for input " + i);
+                }
+            }
+            System.out.printf("%d bits: JCE %.0f ops/s, engine %.0f ops/s, batch %.0f ops/s, blinded batch %.0f ops/s%n",
+                    keySize, ops * 1e9 / jce, ops * 1e9 / single, ops * 1e9 / batch, ops * 1e9 / blinded);
+        }
+    }
+}
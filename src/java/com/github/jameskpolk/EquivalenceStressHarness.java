@@ -0,0 +1,202 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2020. James K Polk
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package com.github.jameskpolk;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyPairGenerator;
+import java.security.interfaces.RSAPrivateCrtKey;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stress test the perturbation and equivalence logic of <code>RSAKeyEquivalents</code>.
+ * Each trial generates an RSA keypair, perturbs the private key in ways that should not
+ * affect encryption or decryption, and checks that the perturbed key is still equal to
+ * the original both structurally and functionally.
+ * <p>
+ * Every trial draws all of its randomness from its own seed, derived from the run seed
+ * and the trial number, so any failing trial can be replayed alone with
+ * <code>--replay=seed</code>. This relies on <code>InsecureRandom</code> being a pure
+ * function of its seed. Failures and replays print a fingerprint of the trial's modulus,
+ * so a replay that did not regenerate the same key is easy to spot. Trials run on a pool
+ * with one thread per processor.
+ * <p>
+ * Options: <code>--keysize=1024 --trials=200 --seconds=0 --threads=N --probes=1
+ * --perturbations=D,DP,DQ,SWAP_PQ --seed=S</code>. If <code>--seconds</code> is positive the
+ * run stops after that long even if trials remain.
+ */
+public class EquivalenceStressHarness {
+
+    private final int keySize;
+    private final long trials;
+    private final long seconds;
+    private final int threads;
+    private final Set<RSAKeyEquivalents.Perturbation> perturbations;
+    private final long seed;
+    private final RSAEquivalenceChecker checker;
+
+    private final LatencyHistogram latencies = new LatencyHistogram();
+    private final AtomicLong failures = new AtomicLong();
+
+    public EquivalenceStressHarness(int keySize, long trials, long seconds, int threads, int probes,
+                                    Set<RSAKeyEquivalents.Perturbation> perturbations, long seed) {
+        this.keySize = keySize;
+        this.trials = trials;
+        this.seconds = seconds;
+        this.threads = threads;
+        this.perturbations = perturbations;
+        this.seed = seed;
+        this.checker = new RSAEquivalenceChecker(RSAEquivalenceChecker.Mode.JCE, probes);
+    }
+
+    /**
+     * The seed of trial number <code>trial</code>, by the SplitMix64 finalizer.
+     */
+    static long trialSeed(long runSeed, long trial) {
+        return InsecureRandomSpi.mix64(runSeed + (trial + 1) * InsecureRandomSpi.GOLDEN_GAMMA);
+    }
+
+    /**
+     * Generate the key of a trial.
+     *
+     * @param trialSeed the seed for all of the trial's randomness.
+     * @return the key, which depends only on <code>keySize</code> and the seed.
+     */
+    private RSAPrivateCrtKey trialKey(long trialSeed) throws GeneralSecurityException {
+        KeyPairGenerator kpGen = KeyPairGenerator.getInstance("RSA");
+        kpGen.initialize(keySize, new InsecureRandom(trialSeed));
+        return (RSAPrivateCrtKey) kpGen.generateKeyPair().getPrivate();
+    }
+
+    /**
+     * Run one trial.
+     *
+     * @param trialSeed the seed for all of the trial's randomness.
+     * @return null if the trial passed, otherwise a description of the failure that starts
+     * with the fingerprint of the trial's modulus.
+     */
+    public String runTrial(long trialSeed) throws GeneralSecurityException {
+        return runTrial(trialKey(trialSeed), trialSeed);
+    }
+
+    private String runTrial(RSAPrivateCrtKey originalCRTKey, long trialSeed) throws GeneralSecurityException {
+        Random randomForData = new Random(trialSeed + 1);
+        RSAPrivateCrtKey perturbedCRTKey = RSAKeyEquivalents.perturbCRTKey(originalCRTKey, randomForData, perturbations);
+        String key = String.format("key %016x: ", RecoveryCache.fingerprint(originalCRTKey.getModulus()));
+        if (!RSAKeyEquivalents.rsaPrivateKeyEquals(perturbedCRTKey, originalCRTKey)) {
+            return key + "private crt keys differ";
+        }
+        if (!checker.functionallyEqual(originalCRTKey, perturbedCRTKey, randomForData)) {
+            return key + "crt keys are not functionally equal";
+        }
+        return null;
+    }
+
+    /**
+     * Run all the trials and print a summary.
+     *
+     * @return the number of failed trials.
+     */
+    public long run() throws InterruptedException {
+        System.out.printf("Random seed is: %d, keysize %d, perturbations %s, %d threads%n",
+                seed, keySize, perturbations, threads);
+        long start = System.nanoTime();
+        long deadline = (seconds > 0) ? start + TimeUnit.SECONDS.toNanos(seconds) : Long.MAX_VALUE;
+        AtomicLong nextTrial = new AtomicLong();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        for (int t = 0; t < threads; t++) {
+            executor.execute(() -> {
+                long trial;
+                while ((trial = nextTrial.getAndIncrement()) < trials && System.nanoTime() < deadline) {
+                    long trialSeed = trialSeed(seed, trial);
+                    long trialStart = System.nanoTime();
+                    String failure;
+                    try {
+                        failure = runTrial(trialSeed);
+                    } catch (GeneralSecurityException | RuntimeException ex) {
+                        failure = ex.toString();
+                    }
+                    latencies.record(System.nanoTime() - trialStart);
+                    if (failure != null) {
+                        failures.incrementAndGet();
+                        System.out.printf("At trial #%d, replay with --replay=%d: %s%n", trial, trialSeed, failure);
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        double elapsedSeconds = (System.nanoTime() - start) / 1e9;
+        long count = latencies.getCount();
+        System.out.printf("%d trials, %d failures, %.1f trials/s%n", count, failures.get(), count / elapsedSeconds);
+        System.out.printf("latency ms: mean %.2f, p50 %.2f, p90 %.2f, p99 %.2f, p99.9 %.2f, max %.2f%n",
+                latencies.getMean() / 1e6, latencies.getPercentile(50) / 1e6, latencies.getPercentile(90) / 1e6,
+                latencies.getPercentile(99) / 1e6, latencies.getPercentile(99.9) / 1e6, latencies.getMax() / 1e6);
+        return failures.get();
+    }
+
+    private static String option(String[] args, String name, String defaultValue) {
+        String prefix = "--" + name + "=";
+        for (String arg : args) {
+            if (arg.startsWith(prefix)) {
+                return arg.substring(prefix.length());
+            }
+        }
+        return defaultValue;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int keySize = Integer.parseInt(option(args, "keysize", "1024"));
+        long trials = Long.parseLong(option(args, "trials", "200"));
+        long seconds = Long.parseLong(option(args, "seconds", "0"));
+        int threads = Integer.parseInt(option(args, "threads",
+                Integer.toString(Runtime.getRuntime().availableProcessors())));
+        int probes = Integer.parseInt(option(args, "probes", "1"));
+        Set<RSAKeyEquivalents.Perturbation> perturbations = EnumSet.noneOf(RSAKeyEquivalents.Perturbation.class);
+        for (String name : option(args, "perturbations", "D,DP,DQ,SWAP_PQ").split(",")) {
+            perturbations.add(RSAKeyEquivalents.Perturbation.valueOf(name));
+        }
+        long seed = Long.parseLong(option(args, "seed", Long.toString(new Date().getTime())));
+        EquivalenceStressHarness harness = new EquivalenceStressHarness(keySize, trials, seconds, threads, probes,
+                perturbations, seed);
+        String replay = option(args, "replay", null);
+        if (replay != null) {
+            long trialSeed = Long.parseLong(replay);
+            RSAPrivateCrtKey key = harness.trialKey(trialSeed);
+            String failure = harness.runTrial(key, trialSeed);
+            System.out.println(failure == null
+                    ? String.format("key %016x: passed", RecoveryCache.fingerprint(key.getModulus())) : failure);
+        } else {
+            harness.run();
+        }
+    }
+}
@@ -0,0 +1,230 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2020. James K Polk
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package com.github.jameskpolk;
+
+import java.lang.management.ManagementFactory;
+import java.math.BigInteger;
+import java.security.interfaces.RSAPrivateCrtKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A small benchmark harness comparing the different ways in this package of recovering
+ * the factors of n from (e, d, n). For every combination of key size, public exponent,
+ * and kind of private exponent (d = inv(e) mod phi(n) or d = inv(e) mod lambda(n)) it
+ * reports mean and percentile latency, throughput, and bytes allocated per operation.
+ * <p>
+ * Options are given as <code>--name=v1,v2,...</code>, for example
+ * <code>--sizes=1024,2048 --exponents=3,65537 --methods=FIND_FACTOR,METHOD3
+ * --keys=4 --seed=1 --warmup-ms=1000 --measure-ms=3000</code>. Keys come from a cached
+ * <code>TestKeyCorpus</code>, so repeated runs with the same seed measure the same keys.
+ * With <code>--metrics=true</code> the <code>RecoveryMetrics</code> counters are enabled and
+ * printed at the end; note that they add a little overhead of their own.
+ */
+public class FactorRecoveryBenchmark {
+
+    enum DKind {PHI, LAMBDA}
+
+    enum Method {
+        FIND_FACTOR {
+            @Override
+            Object run(BigInteger n, BigInteger e, BigInteger d) {
+                return RSACrtFromD.findFactor(e, d, n);
+            }
+        },
+        FIND_FACTOR_PARALLEL {
+            @Override
+            Object run(BigInteger n, BigInteger e, BigInteger d) throws Exception {
+                return RSACrtFromD.findFactorParallel(e, d, n);
+            }
+        },
+        FIND_FACTOR_SLOW {
+            @Override
+            Object run(BigInteger n, BigInteger e, BigInteger d) {
+                return RSACrtFromD.findFactorSlow(e, d, n);
+            }
+        },
+        METHOD2 {
+            @Override
+            Object run(BigInteger n, BigInteger e, BigInteger d) {
+                return RSACrtFromDMethod2.solveForPandK(n, e, d);
+            }
+
+            @Override
+            boolean supports(DKind dKind) {
+                return dKind == DKind.PHI;
+            }
+        },
+        METHOD2_PARALLEL {
+            @Override
+            Object run(BigInteger n, BigInteger e, BigInteger d) {
+                return RSACrtFromDMethod2.solveForPandKParallel(n, e, d, 4096);
+            }
+
+            @Override
+            boolean supports(DKind dKind) {
+                return dKind == DKind.PHI;
+            }
+        },
+        METHOD3 {
+            @Override
+            Object run(BigInteger n, BigInteger e, BigInteger d) throws Exception {
+                return RSACrtFromDMethod3.solveForPrivateKey(n, e, d);
+            }
+
+            @Override
+            boolean supports(DKind dKind) {
+                return dKind == DKind.PHI;
+            }
+        };
+
+        abstract Object run(BigInteger n, BigInteger e, BigInteger d) throws Exception;
+
+        /**
+         * Methods 2 and 3 assume d = inv(e) mod phi(n); given a lambda-based d they fail
+         * to find p, so those combinations are skipped.
+         */
+        boolean supports(DKind dKind) {
+            return true;
+        }
+    }
+
+    private static volatile int sink;
+
+    private static final com.sun.management.ThreadMXBean THREAD_BEAN =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private static class TestKey {
+        final BigInteger n;
+        final BigInteger e;
+        final BigInteger d;
+
+        TestKey(BigInteger n, BigInteger e, BigInteger d) {
+            this.n = n;
+            this.e = e;
+            this.d = d;
+        }
+    }
+
+    private static List<TestKey> generateKeys(TestKeyCorpus corpus, long seed, int size, BigInteger e, DKind dKind,
+                                              int count) throws Exception {
+        List<TestKey> keys = new ArrayList<>();
+        for (RSAPrivateCrtKey key : corpus.keys(seed, size, e, count)) {
+            BigInteger pMinus1 = key.getPrimeP().subtract(BigInteger.ONE);
+            BigInteger qMinus1 = key.getPrimeQ().subtract(BigInteger.ONE);
+            BigInteger phi = pMinus1.multiply(qMinus1);
+            BigInteger modulus = (dKind == DKind.PHI) ? phi : phi.divide(pMinus1.gcd(qMinus1));
+            keys.add(new TestKey(key.getModulus(), e, e.modInverse(modulus)));
+        }
+        return keys;
+    }
+
+    private static long[] runFor(Method method, List<TestKey> keys, long millis) throws Exception {
+        List<Long> latencies = new ArrayList<>();
+        long deadline = System.nanoTime() + millis * 1_000_000L;
+        int i = 0;
+        do {
+            TestKey key = keys.get(i++ % keys.size());
+            long start = System.nanoTime();
+            Object result = method.run(key.n, key.e, key.d);
+            latencies.add(System.nanoTime() - start);
+            sink += result.hashCode();
+        } while (System.nanoTime() < deadline);
+        long[] result = new long[latencies.size()];
+        for (int j = 0; j < result.length; j++) {
+            result[j] = latencies.get(j);
+        }
+        return result;
+    }
+
+    private static void measure(Method method, int size, BigInteger e, DKind dKind, List<TestKey> keys,
+                                long warmupMillis, long measureMillis) throws Exception {
+        runFor(method, keys, warmupMillis);
+        long threadId = Thread.currentThread().getId();
+        long allocatedBefore = THREAD_BEAN.getThreadAllocatedBytes(threadId);
+        long[] latencies = runFor(method, keys, measureMillis);
+        long allocated = THREAD_BEAN.getThreadAllocatedBytes(threadId) - allocatedBefore;
+        long total = 0;
+        for (long latency : latencies) {
+            total += latency;
+        }
+        Arrays.sort(latencies);
+        int ops = latencies.length;
+        System.out.printf("%-20s %5d %6s %6s %7d %12.3f %12.3f %12.3f %12.3f %12.1f %14d%n",
+                method, size, e, dKind, ops,
+                total / 1e6 / ops,
+                latencies[ops / 2] / 1e6,
+                latencies[Math.min(ops - 1, (int) (ops * 0.99))] / 1e6,
+                latencies[ops - 1] / 1e6,
+                ops * 1e9 / total,
+                allocated / ops);
+    }
+
+    private static String option(String[] args, String name, String defaultValue) {
+        String prefix = "--" + name + "=";
+        for (String arg : args) {
+            if (arg.startsWith(prefix)) {
+                return arg.substring(prefix.length());
+            }
+        }
+        return defaultValue;
+    }
+
+    public static void main(String[] args) throws Exception {
+        String[] sizes = option(args, "sizes", "1024,2048,4096,8192").split(",");
+        String[] exponents = option(args, "exponents", "3,17,65537").split(",");
+        String[] dKinds = option(args, "d", "PHI,LAMBDA").split(",");
+        String[] methods = option(args, "methods", "FIND_FACTOR,FIND_FACTOR_PARALLEL,FIND_FACTOR_SLOW,METHOD2,METHOD2_PARALLEL,METHOD3").split(",");
+        int keyCount = Integer.parseInt(option(args, "keys", "4"));
+        long seed = Long.parseLong(option(args, "seed", "1"));
+        TestKeyCorpus corpus = new TestKeyCorpus();
+        long warmupMillis = Long.parseLong(option(args, "warmup-ms", "1000"));
+        long measureMillis = Long.parseLong(option(args, "measure-ms", "3000"));
+        RecoveryMetrics.setEnabled(Boolean.parseBoolean(option(args, "metrics", "false")));
+
+        System.out.printf("%-20s %5s %6s %6s %7s %12s %12s %12s %12s %12s %14s%n",
+                "method", "bits", "e", "d", "ops", "mean ms", "p50 ms", "p99 ms", "max ms", "ops/s", "bytes/op");
+        for (String size : sizes) {
+            for (String exponent : exponents) {
+                BigInteger e = new BigInteger(exponent);
+                for (String dKindName : dKinds) {
+                    DKind dKind = DKind.valueOf(dKindName);
+                    List<TestKey> keys = generateKeys(corpus, seed, Integer.parseInt(size), e, dKind, keyCount);
+                    for (String methodName : methods) {
+                        Method method = Method.valueOf(methodName);
+                        if (method.supports(dKind)) {
+                            measure(method, Integer.parseInt(size), e, dKind, keys, warmupMillis, measureMillis);
+                        }
+                    }
+                }
+            }
+        }
+        if (RecoveryMetrics.isEnabled()) {
+            System.out.print(RecoveryMetrics.report());
+        }
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2020. James K Polk
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package com.github.jameskpolk;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * A JDK Flight Recorder event for one factor recovery, committed by
+ * <code>RecoveryMetrics</code>. Record with, for example,
+ * <code>java -XX:StartFlightRecording:filename=recovery.jfr ...</code> and view with
+ * <code>jfr print --events com.github.jameskpolk.FactorRecovery recovery.jfr</code>.
+ */
+@Name("com.github.jameskpolk.FactorRecovery")
+@Label("Factor Recovery")
+@Category({"RSA", "Factor Recovery"})
+@Description("Recovery of a factor of an RSA modulus from (n, e, d)")
+public class FactorRecoveryEvent extends Event {
+
+    @Label("Operation")
+    String operation;
+
+    @Label("Modulus Bits")
+    int modulusBits;
+
+    @Label("Bases")
+    @Description("Witnesses a tried by the HAC method")
+    long bases;
+
+    @Label("Squarings")
+    long squarings;
+
+    @Label("k Scanned")
+    @Description("Values of k tested for dividing ed - 1")
+    long kScanned;
+
+    @Label("k Candidates")
+    @Description("Values of k for which the quadratic was solved")
+    long kCandidates;
+
+    @Label("modPow Time")
+    @Timespan(Timespan.NANOSECONDS)
+    long modPowNanos;
+
+    @Label("gcd Time")
+    @Timespan(Timespan.NANOSECONDS)
+    long gcdNanos;
+
+    @Label("Found")
+    boolean found;
+}
@@ -0,0 +1,92 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2020. James K Polk
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package com.github.jameskpolk;
+
+import java.math.BigInteger;
+import java.security.InvalidKeyException;
+import java.security.interfaces.RSAPublicKey;
+import java.security.spec.RSAPrivateCrtKeySpec;
+
+/**
+ * A public key from an audited list whose modulus was factored. The factor is always
+ * reported; the complete CRT key is too when <code>RsaPrivateCrtBuilder</code> can build
+ * one, which it cannot when, for example, n has more than two primes or e is not
+ * invertible mod lambda(n).
+ */
+public class FactoredModulus {
+    private final int index;
+    private final BigInteger factor;
+    private final RSAPrivateCrtKeySpec keySpec;
+
+    FactoredModulus(int index, BigInteger factor, RSAPrivateCrtKeySpec keySpec) {
+        this.index = index;
+        this.factor = factor;
+        this.keySpec = keySpec;
+    }
+
+    /**
+     * Record a factor of a key's modulus, and build the full CRT key if possible.
+     *
+     * @param index  the position of the key in the input list.
+     * @param key    the public key.
+     * @param factor a non-trivial factor of its modulus.
+     * @return the finding.
+     */
+    static FactoredModulus of(int index, RSAPublicKey key, BigInteger factor) {
+        RSAPrivateCrtKeySpec keySpec;
+        try {
+            keySpec = new RsaPrivateCrtBuilder()
+                    .setModulus(key.getModulus())
+                    .setPublicExponent(key.getPublicExponent())
+                    .setPrimeP(factor)
+                    .buildKeySpec();
+        } catch (InvalidKeyException ex) {
+            keySpec = null;
+        }
+        return new FactoredModulus(index, factor, keySpec);
+    }
+
+    /**
+     * @return the position of the key in the input list.
+     */
+    public int getIndex() {
+        return index;
+    }
+
+    /**
+     * @return the non-trivial factor of the modulus that was found.
+     */
+    public BigInteger getFactor() {
+        return factor;
+    }
+
+    /**
+     * @return the complete CRT key, or null if none could be built from the factor.
+     */
+    public RSAPrivateCrtKeySpec getKeySpec() {
+        return keySpec;
+    }
+}
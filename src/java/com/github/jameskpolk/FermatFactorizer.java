@@ -0,0 +1,175 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2020. James K Polk
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package com.github.jameskpolk;
+
+import java.math.BigInteger;
+import java.security.KeyFactory;
+import java.security.interfaces.RSAPrivateCrtKey;
+import java.security.interfaces.RSAPublicKey;
+import java.security.spec.RSAPublicKeySpec;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Random;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Fermat's factoring method, for finding RSA moduli whose primes are too close together.
+ * If n = pq then n = x*x - y*y with x = (p+q)/2 and y = (q-p)/2, so starting from
+ * x = ceil(sqrt(n)) it looks for an x where x*x - n is a square. The number of steps is about
+ * (q-p)**2 / (8 sqrt(n)), so with a budget of b steps it finds every pair with
+ * |p - q| < sqrt(8b) * n**(1/4), e.g. 2**529 for a 2048-bit modulus and a million steps.
+ * <p>
+ * Each step advances x*x - n and its increment 2x+1 by additions only, and only modulo the
+ * first composite sieve modulus of <code>RSACrtFromDMethod2</code>, where a table lookup
+ * rejects all but 1.5% of x. Those few are checked against the other sieve moduli, which
+ * leaves about 3 in a million for BigInteger arithmetic and a square root.
+ */
+public class FermatFactorizer {
+
+    /**
+     * Try to factor n with at most <code>maxIterations</code> steps of Fermat's method.
+     *
+     * @param n             an odd composite.
+     * @param maxIterations the number of values of x to try.
+     * @return a non-trivial factor of n, or null if none was found within the budget.
+     */
+    public static BigInteger findFactor(BigInteger n, long maxIterations) {
+        BigInteger x0 = RSACrtFromDMethod2.isqrt(n);
+        if (x0.multiply(x0).equals(n)) {
+            return x0;
+        }
+        x0 = x0.add(BigInteger.ONE);
+        BigInteger r0 = x0.multiply(x0).subtract(n);
+        BigInteger twoX0 = x0.shiftLeft(1);
+
+        // x*x - n and 2x + 1 modulo the first sieve modulus, the most selective, whose
+        // second difference is 2; the other moduli are only consulted for its survivors
+        int[] moduli = RSACrtFromDMethod2.SIEVE_MODULI;
+        long[][] squares = RSACrtFromDMethod2.SIEVE_SQUARES;
+        int modulus0 = moduli[0];
+        long[] squares0 = squares[0];
+        int r = r0.mod(BigInteger.valueOf(modulus0)).intValue();
+        int delta = twoX0.add(BigInteger.ONE).mod(BigInteger.valueOf(modulus0)).intValue();
+        long[] x0Mod = new long[moduli.length];
+        long[] nMod = new long[moduli.length];
+        for (int i = 1; i < moduli.length; i++) {
+            BigInteger modulus = BigInteger.valueOf(moduli[i]);
+            x0Mod[i] = x0.mod(modulus).longValue();
+            nMod[i] = n.mod(modulus).longValue();
+        }
+
+        long lastK = 0;
+        BigInteger lastR = r0;
+        for (long k = 0; k < maxIterations; k++) {
+            boolean possibleSquare = RSACrtFromDMethod2.isResidue(squares0, r);
+            r += delta;
+            if (r >= modulus0) {
+                r -= modulus0;
+            }
+            delta += 2;
+            if (delta >= modulus0) {
+                delta -= modulus0;
+            }
+            for (int i = 1; possibleSquare && i < moduli.length; i++) {
+                long x = (x0Mod[i] + k) % moduli[i];
+                int ri = (int) Math.floorMod(x * x - nMod[i], (long) moduli[i]);
+                possibleSquare = RSACrtFromDMethod2.isResidue(squares[i], ri);
+            }
+            if (possibleSquare) {
+                // catch up from the last survivor: r(k) - r(j) = (k - j)(2x0 + k + j)
+                lastR = lastR.add(BigInteger.valueOf(k - lastK).multiply(twoX0.add(BigInteger.valueOf(k + lastK))));
+                lastK = k;
+                BigInteger y = RSACrtFromDMethod2.perfectSqrt(lastR);
+                if (y != null) {
+                    BigInteger p = x0.add(BigInteger.valueOf(k)).subtract(y);
+                    return p.equals(BigInteger.ONE) ? null : p;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Run <code>findFactor()</code> on every key in parallel.
+     *
+     * @param keys          the public keys to check.
+     * @param maxIterations the budget of steps per key.
+     * @return the keys whose modulus was factored, in input order, each with its factor
+     * even when no complete CRT key could be built.
+     */
+    public static List<FactoredModulus> scan(List<RSAPublicKey> keys, long maxIterations) {
+        return IntStream.range(0, keys.size())
+                .parallel()
+                .mapToObj(i -> {
+                    RSAPublicKey key = keys.get(i);
+                    BigInteger factor = findFactor(key.getModulus(), maxIterations);
+                    return (factor != null) ? FactoredModulus.of(i, key, factor) : null;
+                })
+                .filter(Objects::nonNull)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Scan a test corpus into which two keys with close primes have been planted, one of
+     * them with no valid private key, and print the findings and the time per step.
+     *
+     * @param args budget of steps per key; default 1000000.
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+        long maxIterations = (args.length > 0) ? Long.parseLong(args[0]) : 1_000_000;
+        KeyFactory kf = KeyFactory.getInstance("RSA");
+        List<RSAPublicKey> keys = new ArrayList<>();
+        for (RSAPrivateCrtKey key : new TestKeyCorpus().keys(1, 2048, TestKeyCorpus.F4, 16)) {
+            keys.add((RSAPublicKey) kf.generatePublic(new RSAPublicKeySpec(key.getModulus(), key.getPublicExponent())));
+        }
+        Random random = new InsecureRandom(1);
+        BigInteger p = TestKeyCorpus.generatePrime(1024, TestKeyCorpus.F4, random);
+        BigInteger q = p.add(new BigInteger(520, random).setBit(0)).nextProbablePrime();
+        keys.add(5, (RSAPublicKey) kf.generatePublic(new RSAPublicKeySpec(p.multiply(q), TestKeyCorpus.F4)));
+        // close primes again, but with e = 3 dividing p - 1, so there is no private key to build
+        BigInteger three = BigInteger.valueOf(3);
+        do {
+            p = new BigInteger(1024, random).setBit(1023).nextProbablePrime();
+        } while (p.mod(three).intValue() != 1);
+        q = p.add(new BigInteger(500, random).setBit(0)).nextProbablePrime();
+        keys.add(11, (RSAPublicKey) kf.generatePublic(new RSAPublicKeySpec(p.multiply(q), three)));
+
+        long start = System.nanoTime();
+        List<FactoredModulus> found = scan(keys, maxIterations);
+        long elapsed = System.nanoTime() - start;
+        for (FactoredModulus factored : found) {
+            BigInteger factor = factored.getFactor();
+            System.out.printf("key %d: |p - q| has %d bits%s%n", factored.getIndex(),
+                    keys.get(factored.getIndex()).getModulus().divide(factor).subtract(factor).abs().bitLength(),
+                    (factored.getKeySpec() == null) ? ", no CRT key" : "");
+        }
+        System.out.printf("%d keys in %.1f ms, at most %.1f ns per step%n", keys.size(), elapsed / 1e6,
+                (double) elapsed / (keys.size() - found.size()) / maxIterations);
+    }
+}
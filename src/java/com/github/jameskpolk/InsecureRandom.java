@@ -28,10 +28,24 @@ package com.github.jameskpolk;
 import java.security.SecureRandom;
 import java.util.Date;
 
+/**
+ * A reproducible <code>SecureRandom</code> for tests. The same seed always produces the same
+ * bytes, and <code>nextBytes</code> is lock-free, so one instance can be shared by many threads;
+ * for reproducible parallel work give each task its own <code>stream(index)</code> instead.
+ */
 public class InsecureRandom extends SecureRandom {
 
+    private static final InsecureRandomProvider PROVIDER = new InsecureRandomProvider();
+
+    private final InsecureRandomSpi spi;
+
+    private InsecureRandom(InsecureRandomSpi spi) {
+        super(spi, PROVIDER);
+        this.spi = spi;
+    }
+
     public InsecureRandom(long seed) {
-        super(new InsecureRandomSpi(seed), null);
+        this(new InsecureRandomSpi(seed));
     }
 
     public InsecureRandom() {
@@ -39,7 +53,37 @@ public class InsecureRandom extends SecureRandom {
     }
 
     public InsecureRandom(byte[] seed) {
-        this();
-        throw new RuntimeException("Constructor not supported");
+        this(InsecureRandomSpi.seedFromBytes(seed));
+    }
+
+    /**
+     * @return a new, statistically independent generator seeded from this one.
+     */
+    public InsecureRandom split() {
+        return new InsecureRandom(spi.split());
+    }
+
+    /**
+     * @return generator number <code>index</code> of a family determined by this generator's seed alone.
+     */
+    public InsecureRandom stream(long index) {
+        return new InsecureRandom(spi.stream(index));
+    }
+
+    @Override
+    public String getAlgorithm() {
+        return InsecureRandomProvider.NAME;
+    }
+
+    // SecureRandom synchronizes these unless it was created by getInstance from a thread-safe service
+
+    @Override
+    public void nextBytes(byte[] bytes) {
+        spi.engineNextBytes(bytes);
+    }
+
+    @Override
+    public long nextLong() {
+        return spi.nextLong();
     }
 }
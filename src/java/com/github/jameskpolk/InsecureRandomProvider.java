@@ -0,0 +1,57 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2020. James K Polk
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package com.github.jameskpolk;
+
+import java.security.Provider;
+import java.security.Security;
+
+/**
+ * A JCA provider offering <code>InsecureRandomSpi</code> as the <code>SecureRandom</code>
+ * algorithm "InsecureRandom". The service is marked thread-safe, so
+ * <code>SecureRandom.getInstance("InsecureRandom", provider)</code> does not synchronize.
+ * Call <code>setSeed</code> on the result before using it to get a reproducible stream.
+ */
+public class InsecureRandomProvider extends Provider {
+
+    private static final long serialVersionUID = 1L;
+
+    public static final String NAME = "InsecureRandom";
+
+    public InsecureRandomProvider() {
+        super(NAME, "1.0", "Deterministic SplitMix64 SecureRandom, for tests only");
+        put("SecureRandom." + NAME, InsecureRandomSpi.class.getName());
+        put("SecureRandom." + NAME + " ThreadSafe", "true");
+    }
+
+    /**
+     * Add this provider at the lowest preference, if it is not installed already.
+     */
+    public static void install() {
+        if (Security.getProvider(NAME) == null) {
+            Security.addProvider(new InsecureRandomProvider());
+        }
+    }
+}
@@ -27,24 +27,129 @@ package com.github.jameskpolk;
 
 import java.security.SecureRandomSpi;
 import java.util.Date;
-import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * A deterministic, splittable SplitMix64 generator, the algorithm behind
+ * <code>java.util.SplittableRandom</code>. The state is a single <code>AtomicLong</code>
+ * advanced by a fixed odd gamma, so concurrent callers never block each other, and a
+ * single-threaded caller always sees the same output for the same seed.
+ * <p>
+ * A seed supplied before the first output replaces the state entirely; a seed supplied
+ * afterwards is mixed into it, as the <code>SecureRandom</code> contract requires.
+ * Never use this for anything but tests.
+ */
 public class InsecureRandomSpi extends SecureRandomSpi {
 
-    private final Random random;
+    static final long GOLDEN_GAMMA = 0x9E3779B97F4A7C15L;
+
+    private final AtomicLong state;
+    private final long gamma;
+    private volatile long initialSeed;
+    private volatile boolean used;
+
+    /**
+     * Used by <code>InsecureRandomProvider</code>; seeded from the clock until <code>setSeed</code> is called.
+     */
+    public InsecureRandomSpi() {
+        this(new Date().getTime());
+    }
 
     InsecureRandomSpi(long seed) {
-        this.random = new Random(new Date().getTime());
+        this(seed, GOLDEN_GAMMA);
+    }
+
+    private InsecureRandomSpi(long seed, long gamma) {
+        this.state = new AtomicLong(seed);
+        this.gamma = gamma;
+        this.initialSeed = seed;
+    }
+
+    /**
+     * The SplitMix64 output function, a bijection on longs.
+     */
+    static long mix64(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * An odd gamma with enough bit transitions, as in <code>SplittableRandom</code>.
+     */
+    private static long mixGamma(long z) {
+        z = (z ^ (z >>> 33)) * 0xFF51AFD7ED558CCDL;
+        z = (z ^ (z >>> 33)) * 0xC4CEB9FE1A85EC53L;
+        z = (z ^ (z >>> 33)) | 1L;
+        int n = Long.bitCount(z ^ (z >>> 1));
+        return (n < 24) ? z ^ 0xAAAAAAAAAAAAAAAAL : z;
+    }
+
+    /**
+     * Fold a byte seed into a long. Seeds of at most 8 bytes are read as a little-endian
+     * long, which is how <code>SecureRandom.setSeed(long)</code> encodes its argument,
+     * so that and the <code>long</code> constructor agree.
+     */
+    static long seedFromBytes(byte[] seed) {
+        long result = 0;
+        for (int i = 0; i < seed.length; i += 8) {
+            long chunk = 0;
+            for (int j = Math.min(i + 8, seed.length) - 1; j >= i; j--) {
+                chunk = (chunk << 8) | (seed[j] & 0xff);
+            }
+            result = (i == 0) ? chunk : mix64(result) ^ chunk;
+        }
+        return result;
+    }
+
+    long nextLong() {
+        used = true;
+        return mix64(state.addAndGet(gamma));
+    }
+
+    /**
+     * @return a new generator whose seed and gamma are drawn from this one.
+     */
+    InsecureRandomSpi split() {
+        return new InsecureRandomSpi(nextLong(), mixGamma(state.addAndGet(gamma)));
+    }
+
+    /**
+     * @return generator number <code>index</code> of a family derived from the seed alone,
+     * so the same index always yields the same stream no matter how much of this one has been used.
+     */
+    InsecureRandomSpi stream(long index) {
+        long z = initialSeed + (index + 1) * GOLDEN_GAMMA;
+        return new InsecureRandomSpi(mix64(z), mixGamma(z + GOLDEN_GAMMA));
     }
 
     @Override
     protected void engineSetSeed(byte[] seed) {
-        // does nothing
+        long value = seedFromBytes(seed);
+        if (used) {
+            long current;
+            do {
+                current = state.get();
+            } while (!state.compareAndSet(current, mix64(current ^ value)));
+        } else {
+            state.set(value);
+            initialSeed = value;
+        }
     }
 
     @Override
     protected void engineNextBytes(byte[] bytes) {
-        random.nextBytes(bytes);
+        used = true;
+        int words = (bytes.length + 7) / 8;
+        // reserve all the words at once, so the output matches consecutive nextLong() calls
+        long base = state.getAndAdd(words * gamma);
+        int i = 0;
+        for (int w = 1; w <= words; w++) {
+            long r = mix64(base + w * gamma);
+            for (int n = Math.min(bytes.length - i, 8); n-- > 0; r >>>= 8) {
+                bytes[i++] = (byte) r;
+            }
+        }
     }
 
     @Override
@@ -0,0 +1,229 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2020. James K Polk
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package com.github.jameskpolk;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.interfaces.RSAPrivateCrtKey;
+import java.security.spec.RSAPrivateCrtKeySpec;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A compact binary file of RSA CRT private keys, read through a memory mapping so that
+ * opening a corpus costs nothing and each field is decoded only when asked for.
+ * <p>
+ * All integers are big-endian. The header is
+ * <pre>
+ *   int   magic "RSAK"
+ *   short version (1)
+ *   short number of fields (8)
+ *   int   number of keys
+ *   int   record size in bytes
+ *   8 x { int offset within record, int width in bytes }  for n, e, d, p, q, dp, dq, qInv
+ * </pre>
+ * followed by one fixed-size record per key, each field an unsigned big-endian magnitude
+ * left-padded with zeros to its width. Record i therefore starts at
+ * <code>HEADER_SIZE + i * recordSize</code> and no per-key index is needed.
+ * <p>
+ * A <code>KeyCorpusFile</code> is immutable and may be shared by any number of threads.
+ */
+public class KeyCorpusFile {
+
+    public enum Field {N, E, D, P, Q, DP, DQ, QINV}
+
+    private static final int MAGIC = 0x5253414B;
+    private static final short VERSION = 1;
+    private static final int FIELDS = Field.values().length;
+    static final int HEADER_SIZE = 16 + 8 * FIELDS;
+
+    private final ByteBuffer buffer;
+    private final int count;
+    private final int recordSize;
+    private final int[] offsets = new int[FIELDS];
+    private final int[] widths = new int[FIELDS];
+
+    private KeyCorpusFile(ByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            throw new IOException("not a key corpus file");
+        }
+        if (buffer.getShort(4) != VERSION || buffer.getShort(6) != FIELDS) {
+            throw new IOException("unsupported key corpus version");
+        }
+        this.count = buffer.getInt(8);
+        this.recordSize = buffer.getInt(12);
+        for (int f = 0; f < FIELDS; f++) {
+            offsets[f] = buffer.getInt(16 + 8 * f);
+            widths[f] = buffer.getInt(20 + 8 * f);
+            if (offsets[f] < 0 || widths[f] < 0 || offsets[f] + widths[f] > recordSize) {
+                throw new IOException("corrupt key corpus header");
+            }
+        }
+        if ((long) HEADER_SIZE + (long) count * recordSize > buffer.capacity()) {
+            throw new IOException("truncated key corpus file");
+        }
+    }
+
+    /**
+     * Map a corpus file into memory. The mapping stays valid after this returns.
+     */
+    public static KeyCorpusFile open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("key corpus file too large to map: " + file);
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new KeyCorpusFile(buffer.order(ByteOrder.BIG_ENDIAN));
+        }
+    }
+
+    /**
+     * Write keys in this format, with each field as wide as its widest value among the keys.
+     */
+    public static void write(Path file, List<RSAPrivateCrtKey> keys) throws IOException {
+        int[] widths = new int[FIELDS];
+        for (RSAPrivateCrtKey key : keys) {
+            BigInteger[] values = fields(key);
+            for (int f = 0; f < FIELDS; f++) {
+                widths[f] = Math.max(widths[f], (values[f].bitLength() + 7) / 8);
+            }
+        }
+        int recordSize = 0;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putShort(VERSION).putShort((short) FIELDS).putInt(keys.size());
+        header.putInt(Arrays.stream(widths).sum());
+        for (int f = 0; f < FIELDS; f++) {
+            header.putInt(recordSize).putInt(widths[f]);
+            recordSize += widths[f];
+        }
+        header.flip();
+        ByteBuffer record = ByteBuffer.allocate(recordSize);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            writeFully(channel, header);
+            for (RSAPrivateCrtKey key : keys) {
+                record.clear();
+                BigInteger[] values = fields(key);
+                for (int f = 0; f < FIELDS; f++) {
+                    putMagnitude(record, values[f], widths[f]);
+                }
+                record.flip();
+                writeFully(channel, record);
+            }
+        }
+    }
+
+    private static BigInteger[] fields(RSAPrivateCrtKey key) {
+        return new BigInteger[]{key.getModulus(), key.getPublicExponent(), key.getPrivateExponent(),
+                key.getPrimeP(), key.getPrimeQ(), key.getPrimeExponentP(), key.getPrimeExponentQ(),
+                key.getCrtCoefficient()};
+    }
+
+    private static void putMagnitude(ByteBuffer out, BigInteger value, int width) {
+        byte[] bytes = value.toByteArray();
+        // toByteArray() may have a leading zero sign byte
+        int skip = bytes.length - (value.bitLength() + 7) / 8;
+        for (int i = bytes.length - skip; i < width; i++) {
+            out.put((byte) 0);
+        }
+        out.put(bytes, skip, bytes.length - skip);
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public int getWidth(Field field) {
+        return widths[field.ordinal()];
+    }
+
+    private int position(int index, Field field) {
+        if (index < 0 || index >= count) {
+            throw new IndexOutOfBoundsException("key " + index + " of " + count);
+        }
+        return HEADER_SIZE + index * recordSize + offsets[field.ordinal()];
+    }
+
+    /**
+     * @return a read-only, zero-copy view of the big-endian bytes of one field.
+     */
+    public ByteBuffer view(int index, Field field) {
+        int position = position(index, field);
+        return buffer.slice(position, widths[field.ordinal()]).asReadOnlyBuffer();
+    }
+
+    public BigInteger get(int index, Field field) {
+        byte[] magnitude = new byte[widths[field.ordinal()]];
+        buffer.get(position(index, field), magnitude);
+        return new BigInteger(1, magnitude);
+    }
+
+    /**
+     * Decode one field into little-endian 64-bit limbs, the layout used by
+     * <code>MontgomeryContext</code>, without allocating.
+     *
+     * @param out receives the limbs; limbs beyond the value are zeroed.
+     * @throws IllegalArgumentException if out is too short for the field's width.
+     */
+    public void getLimbs(int index, Field field, long[] out) {
+        int width = widths[field.ordinal()];
+        if (out.length * 8L < width) {
+            throw new IllegalArgumentException("out is too short for " + width + " bytes");
+        }
+        int end = position(index, field) + width;
+        for (int i = 0; i < out.length; i++) {
+            long limb = 0;
+            for (int b = 7; b >= 0; b--) {
+                int p = end - 8 * i - 1 - b;
+                if (p >= end - width) {
+                    limb = (limb << 8) | (buffer.get(p) & 0xff);
+                } else {
+                    limb <<= 8;
+                }
+            }
+            out[i] = limb;
+        }
+    }
+
+    public RSAPrivateCrtKeySpec getKeySpec(int index) {
+        return new RSAPrivateCrtKeySpec(get(index, Field.N), get(index, Field.E), get(index, Field.D),
+                get(index, Field.P), get(index, Field.Q), get(index, Field.DP), get(index, Field.DQ),
+                get(index, Field.QINV));
+    }
+}
@@ -0,0 +1,268 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2020. James K Polk
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package com.github.jameskpolk;
+
+import java.util.Arrays;
+
+/**
+ * Factor positive 64-bit integers by trial division by a cached table of small primes,
+ * a deterministic Miller-Rabin test, and Pollard-Brent rho, all with Montgomery
+ * multiplication on single 64-bit words. <code>factor(n, factors)</code> allocates
+ * nothing; <code>factor(n)</code> allocates only its result.
+ */
+public class LongFactorizer {
+
+    /**
+     * Enough room for the factors of any positive long, with multiplicity.
+     */
+    public static final int MAX_FACTORS = 63;
+
+    private static final int TRIAL_LIMIT = 1 << 12;
+    private static final int[] SMALL_PRIMES = sieve(TRIAL_LIMIT);
+
+    /**
+     * These bases make Miller-Rabin deterministic for all n < 3.3 * 10**24.
+     */
+    private static final long[] MR_BASES = {2, 3, 5, 7, 11, 13, 17, 19, 23, 29, 31, 37};
+
+    private static int[] sieve(int limit) {
+        boolean[] composite = new boolean[limit];
+        int count = 0;
+        for (int i = 2; i < limit; i++) {
+            if (!composite[i]) {
+                count++;
+                for (int j = i * i; j < limit; j += i) {
+                    composite[j] = true;
+                }
+            }
+        }
+        int[] primes = new int[count];
+        for (int i = 2, k = 0; i < limit; i++) {
+            if (!composite[i]) {
+                primes[k++] = i;
+            }
+        }
+        return primes;
+    }
+
+    /**
+     * Factor n into primes.
+     *
+     * @param n a positive integer.
+     * @return the prime factors of n in ascending order, with multiplicity.
+     */
+    public static long[] factor(long n) {
+        long[] factors = new long[MAX_FACTORS];
+        return Arrays.copyOf(factors, factor(n, factors));
+    }
+
+    /**
+     * Factor n into primes, writing the factors in ascending order, with multiplicity,
+     * to the start of <code>factors</code>.
+     *
+     * @param n       a positive integer.
+     * @param factors receives the factors; <code>MAX_FACTORS</code> entries always suffice.
+     *                Its unused tail serves as scratch space for factors not yet split.
+     * @return the number of factors written.
+     */
+    public static int factor(long n, long[] factors) {
+        if (n <= 0) {
+            throw new IllegalArgumentException("n must be positive");
+        }
+        int count = 0;
+        for (int prime : SMALL_PRIMES) {
+            if ((long) prime * prime > n) {
+                break;
+            }
+            while (n % prime == 0) {
+                factors[count++] = prime;
+                n /= prime;
+            }
+        }
+        if (n > 1) {
+            // Unsplit pieces are stacked down from the end of factors. Each holds at least
+            // one prime, so the primes found and the pieces pending never overlap.
+            int pending = factors.length;
+            factors[--pending] = n;
+            while (pending < factors.length) {
+                long m = factors[pending++];
+                if (isPrime(m)) {
+                    factors[count++] = m;
+                } else {
+                    long g = pollardBrent(m);
+                    factors[--pending] = g;
+                    factors[--pending] = m / g;
+                }
+            }
+        }
+        Arrays.sort(factors, 0, count);
+        return count;
+    }
+
+    /**
+     * A deterministic primality test for positive longs.
+     */
+    public static boolean isPrime(long n) {
+        if (n < 2) {
+            return false;
+        }
+        for (int prime : SMALL_PRIMES) {
+            if (n % prime == 0) {
+                return n == prime;
+            }
+            if ((long) prime * prime > n) {
+                return true;
+            }
+        }
+        long nInv = -MontgomeryContext.inverse64(n);
+        long one = Long.remainderUnsigned(-n, n); // R mod n
+        long minusOne = n - one;
+        long r2 = rSquared(n, one);
+        int s = Long.numberOfTrailingZeros(n - 1);
+        long t = (n - 1) >>> s;
+        for (long base : MR_BASES) {
+            long x = pow(toMontgomery(base, r2, n, nInv), t, one, n, nInv);
+            if (x == one || x == minusOne) {
+                continue;
+            }
+            boolean composite = true;
+            for (int i = 1; i < s; i++) {
+                x = multiply(x, x, n, nInv);
+                if (x == minusOne) {
+                    composite = false;
+                    break;
+                }
+            }
+            if (composite) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Find a non-trivial factor of the odd composite n with Brent's variant of Pollard's rho.
+     */
+    private static long pollardBrent(long n) {
+        final int batch = 128;
+        long nInv = -MontgomeryContext.inverse64(n);
+        for (long c = 1; true; c++) {
+            long y = 2;
+            long x = y;
+            long ys = y;
+            long product = Long.remainderUnsigned(-n, n);
+            long g = 1;
+            for (long r = 1; g == 1; r <<= 1) {
+                x = y;
+                for (long i = 0; i < r; i++) {
+                    y = step(y, c, n, nInv);
+                }
+                for (long k = 0; k < r && g == 1; k += batch) {
+                    ys = y;
+                    long limit = Math.min(batch, r - k);
+                    for (long i = 0; i < limit; i++) {
+                        y = step(y, c, n, nInv);
+                        product = multiply(product, Math.abs(x - y), n, nInv);
+                    }
+                    g = gcd(product, n);
+                }
+            }
+            if (g == n) {
+                // The batch overshot; redo it one step at a time.
+                do {
+                    ys = step(ys, c, n, nInv);
+                    g = gcd(Math.abs(x - ys), n);
+                } while (g == 1);
+            }
+            if (g != n) {
+                return g;
+            }
+        }
+    }
+
+    private static long step(long y, long c, long n, long nInv) {
+        long next = multiply(y, y, n, nInv) + c;
+        return next >= n ? next - n : next;
+    }
+
+    private static long gcd(long a, long b) {
+        if (a == 0) {
+            return b;
+        }
+        int shift = Long.numberOfTrailingZeros(a | b);
+        a >>= Long.numberOfTrailingZeros(a);
+        while (b != 0) {
+            b >>= Long.numberOfTrailingZeros(b);
+            if (a > b) {
+                long t = a;
+                a = b;
+                b = t;
+            }
+            b -= a;
+        }
+        return a << shift;
+    }
+
+    /**
+     * R**2 mod n, by doubling R mod n another 64 times.
+     */
+    private static long rSquared(long n, long rModN) {
+        long x = rModN;
+        for (int i = 0; i < 64; i++) {
+            x <<= 1;
+            if (Long.compareUnsigned(x, n) >= 0) {
+                x -= n;
+            }
+        }
+        return x;
+    }
+
+    private static long toMontgomery(long x, long r2, long n, long nInv) {
+        return multiply(x % n, r2, n, nInv);
+    }
+
+    private static long pow(long base, long exponent, long one, long n, long nInv) {
+        long result = one;
+        for (int i = 63 - Long.numberOfLeadingZeros(exponent); i >= 0; i--) {
+            result = multiply(result, result, n, nInv);
+            if (((exponent >>> i) & 1) != 0) {
+                result = multiply(result, base, n, nInv);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Montgomery multiplication a*b/R mod n for odd n < 2**63 and a, b in [0, n).
+     */
+    private static long multiply(long a, long b, long n, long nInv) {
+        long lo = a * b;
+        long hi = MontgomeryContext.unsignedMultiplyHigh(a, b);
+        long m = lo * nInv;
+        long t = hi + MontgomeryContext.unsignedMultiplyHigh(m, n) + (lo != 0 ? 1 : 0);
+        return Long.compareUnsigned(t, n) >= 0 ? t - n : t;
+    }
+}
@@ -0,0 +1,233 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2020. James K Polk
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package com.github.jameskpolk;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+
+/**
+ * Montgomery arithmetic modulo a fixed odd modulus n, on mutable little-endian arrays
+ * of 64-bit limbs. Elements are kept in Montgomery form, x*R mod n with R = 2**(64*k)
+ * where k is the number of limbs of n, so that the operations below run without
+ * allocating and without any division.
+ * <p>
+ * A context owns scratch space and is therefore not thread-safe; give each thread its
+ * own.
+ */
+public class MontgomeryContext {
+
+    private final BigInteger modulus;
+    private final int k;
+    private final long[] n;
+    private final long nInv;  // -1/n mod 2**64
+    private final long[] one;
+    private final long[] minusOne;
+    private final long[] t;
+
+    /**
+     * @param modulus an odd modulus greater than one.
+     */
+    public MontgomeryContext(BigInteger modulus) {
+        if (modulus.signum() <= 0 || !modulus.testBit(0) || modulus.equals(BigInteger.ONE)) {
+            throw new IllegalArgumentException("modulus must be odd and greater than one");
+        }
+        this.modulus = modulus;
+        this.k = (modulus.bitLength() + 63) >>> 6;
+        this.n = new long[k];
+        toLimbs(modulus, n);
+        this.nInv = -inverse64(n[0]);
+        this.t = new long[k + 2];
+        this.one = newElement();
+        toLimbs(BigInteger.ONE.shiftLeft(64 * k).mod(modulus), one);
+        this.minusOne = newElement();
+        toLimbs(modulus.subtract(BigInteger.ONE).shiftLeft(64 * k).mod(modulus), minusOne);
+    }
+
+    public BigInteger getModulus() {
+        return modulus;
+    }
+
+    /**
+     * @return a new element, initialized to zero.
+     */
+    public long[] newElement() {
+        return new long[k];
+    }
+
+    /**
+     * Convert x, which must be in [0, n), to Montgomery form.
+     *
+     * @param x   the value to convert.
+     * @param out receives x*R mod n.
+     */
+    public void toMontgomery(BigInteger x, long[] out) {
+        toLimbs(x.shiftLeft(64 * k).mod(modulus), out);
+    }
+
+    /**
+     * Convert an element out of Montgomery form.
+     *
+     * @param x an element in Montgomery form.
+     * @return the value x represents, in [0, n).
+     */
+    public BigInteger fromMontgomery(long[] x) {
+        long[] unit = newElement();
+        unit[0] = 1;
+        long[] result = newElement();
+        multiply(x, unit, result);
+        return fromLimbs(result);
+    }
+
+    /**
+     * Montgomery multiplication (CIOS), out = a*b/R mod n. <code>out</code> may be the
+     * same array as <code>a</code> or <code>b</code>.
+     */
+    public void multiply(long[] a, long[] b, long[] out) {
+        long[] t = this.t;
+        Arrays.fill(t, 0L);
+        for (int i = 0; i < k; i++) {
+            long bi = b[i];
+            long carry = 0;
+            for (int j = 0; j < k; j++) {
+                long lo = a[j] * bi;
+                long hi = unsignedMultiplyHigh(a[j], bi);
+                lo += carry;
+                if (Long.compareUnsigned(lo, carry) < 0) {
+                    hi++;
+                }
+                lo += t[j];
+                if (Long.compareUnsigned(lo, t[j]) < 0) {
+                    hi++;
+                }
+                t[j] = lo;
+                carry = hi;
+            }
+            long sum = t[k] + carry;
+            t[k + 1] = Long.compareUnsigned(sum, carry) < 0 ? 1 : 0;
+            t[k] = sum;
+
+            long m = t[0] * nInv;
+            long lo = m * n[0];
+            long hi = unsignedMultiplyHigh(m, n[0]);
+            lo += t[0];
+            if (Long.compareUnsigned(lo, t[0]) < 0) {
+                hi++;
+            }
+            carry = hi;
+            for (int j = 1; j < k; j++) {
+                lo = m * n[j];
+                hi = unsignedMultiplyHigh(m, n[j]);
+                lo += carry;
+                if (Long.compareUnsigned(lo, carry) < 0) {
+                    hi++;
+                }
+                lo += t[j];
+                if (Long.compareUnsigned(lo, t[j]) < 0) {
+                    hi++;
+                }
+                t[j - 1] = lo;
+                carry = hi;
+            }
+            sum = t[k] + carry;
+            t[k - 1] = sum;
+            t[k] = t[k + 1] + (Long.compareUnsigned(sum, carry) < 0 ? 1 : 0);
+        }
+        if (t[k] != 0 || compareToModulus(t) >= 0) {
+            long borrow = 0;
+            for (int j = 0; j < k; j++) {
+                long x = t[j];
+                long diff = x - n[j] - borrow;
+                borrow = (Long.compareUnsigned(x, n[j]) < 0 || (borrow != 0 && x == n[j])) ? 1 : 0;
+                t[j] = diff;
+            }
+        }
+        System.arraycopy(t, 0, out, 0, k);
+    }
+
+    /**
+     * Square x in place, x = x*x/R mod n.
+     */
+    public void square(long[] x) {
+        multiply(x, x, x);
+    }
+
+    /**
+     * @return true if x is the Montgomery form of 1.
+     */
+    public boolean isOne(long[] x) {
+        return Arrays.equals(x, one);
+    }
+
+    /**
+     * @return true if x is the Montgomery form of n - 1.
+     */
+    public boolean isMinusOne(long[] x) {
+        return Arrays.equals(x, minusOne);
+    }
+
+    private int compareToModulus(long[] x) {
+        for (int j = k - 1; j >= 0; j--) {
+            if (x[j] != n[j]) {
+                return Long.compareUnsigned(x[j], n[j]);
+            }
+        }
+        return 0;
+    }
+
+    private void toLimbs(BigInteger x, long[] out) {
+        byte[] bytes = x.toByteArray();
+        Arrays.fill(out, 0L);
+        for (int i = 0; i < bytes.length && (i >>> 3) < k; i++) {
+            out[i >>> 3] |= (bytes[bytes.length - 1 - i] & 0xFFL) << ((i & 7) << 3);
+        }
+    }
+
+    private BigInteger fromLimbs(long[] x) {
+        byte[] bytes = new byte[8 * k];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[bytes.length - 1 - i] = (byte) (x[i >>> 3] >>> ((i & 7) << 3));
+        }
+        return new BigInteger(1, bytes);
+    }
+
+    /**
+     * @return the inverse of the odd value x modulo 2**64.
+     */
+    static long inverse64(long x) {
+        long inv = x; // correct to 3 bits, each Newton step doubles that
+        for (int i = 0; i < 5; i++) {
+            inv *= 2 - x * inv;
+        }
+        return inv;
+    }
+
+    /**
+     * @return the high 64 bits of the unsigned 128-bit product of a and b.
+     */
+    static long unsignedMultiplyHigh(long a, long b) {
+        return Math.multiplyHigh(a, b) + ((a >> 63) & b) + ((b >> 63) & a);
+    }
+}
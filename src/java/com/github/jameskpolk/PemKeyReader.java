@@ -0,0 +1,466 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2020. James K Polk
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package com.github.jameskpolk;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.spec.RSAMultiPrimePrivateCrtKeySpec;
+import java.security.spec.RSAPrivateCrtKeySpec;
+import java.util.Arrays;
+import java.util.function.BiConsumer;
+
+/**
+ * Stream RSA private keys out of concatenated PEM, in constant memory however large the
+ * input. Bytes are read from a channel through a fixed buffer and base64 is decoded as it
+ * arrives, so no line or file is ever held as a string; only the DER of the current key is
+ * buffered. Both "BEGIN RSA PRIVATE KEY" (PKCS#1) and "BEGIN PRIVATE KEY" (PKCS#8 with the
+ * rsaEncryption algorithm) blocks are decoded. Other blocks, encrypted keys, and malformed
+ * keys are skipped and counted.
+ * <p>
+ * Each key yields n, e and d, plus the CRT fields when the encoding has them. Keys whose
+ * CRT fields are zero, as some tools write them, come back without CRT fields and can be
+ * completed with <code>AdaptiveCrtRecovery</code>. Keys with more than two primes (PKCS#1
+ * version 1) have no two-prime CRT form; they come back marked as multi-prime and can be
+ * completed with <code>toMultiPrimeCrtKeySpec()</code>.
+ * <p>
+ * Not thread-safe.
+ */
+public class PemKeyReader implements Closeable {
+
+    /**
+     * The fields of one private key.
+     */
+    public static class RsaKeyFields {
+        private final long index;
+        private final BigInteger n;
+        private final BigInteger e;
+        private final BigInteger d;
+        private final boolean multiPrime;
+        private final RSAPrivateCrtKeySpec crtKeySpec;
+
+        RsaKeyFields(long index, BigInteger n, BigInteger e, BigInteger d, boolean multiPrime,
+                     RSAPrivateCrtKeySpec crtKeySpec) {
+            this.index = index;
+            this.n = n;
+            this.e = e;
+            this.d = d;
+            this.multiPrime = multiPrime;
+            this.crtKeySpec = crtKeySpec;
+        }
+
+        /**
+         * @return the position of this key's PEM block in the input, counting every block from 0.
+         */
+        public long getIndex() {
+            return index;
+        }
+
+        public BigInteger getModulus() {
+            return n;
+        }
+
+        public BigInteger getPublicExponent() {
+            return e;
+        }
+
+        public BigInteger getPrivateExponent() {
+            return d;
+        }
+
+        /**
+         * @return true if the key has more than two primes.
+         */
+        public boolean isMultiPrime() {
+            return multiPrime;
+        }
+
+        /**
+         * @return the CRT key spec as encoded, or null if the encoding had no CRT fields or
+         * the key has more than two primes.
+         */
+        public RSAPrivateCrtKeySpec getCrtKeySpec() {
+            return crtKeySpec;
+        }
+
+        /**
+         * @return the encoded CRT key spec if there is one, otherwise one recovered from (n, e, d).
+         * @throws IllegalStateException    if the key has more than two primes.
+         * @throws IllegalArgumentException if d does not belong to (n, e), or n could not be
+         *                                  split, as when it is a prime or a prime power.
+         */
+        public RSAPrivateCrtKeySpec toCrtKeySpec(AdaptiveCrtRecovery recovery) {
+            if (multiPrime) {
+                throw new IllegalStateException("key has more than two primes");
+            }
+            return (crtKeySpec != null) ? crtKeySpec : recovery.recover(n, e, d).getKeySpec();
+        }
+
+        /**
+         * @return the key with every prime and its CRT values, recovered from (n, e, d); this
+         * works for two-prime keys as well.
+         * @throws IllegalArgumentException if d does not belong to (n, e).
+         */
+        public RSAMultiPrimePrivateCrtKeySpec toMultiPrimeCrtKeySpec() {
+            return RSACrtFromD.createMultiPrimeCrtKeySpec(n, e, d);
+        }
+    }
+
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final int MAX_DER_LENGTH = 1 << 16;
+    private static final int MAX_BOUNDARY_LENGTH = 128;
+    private static final byte[] BEGIN = "-----BEGIN ".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] DASHES = "-----".getBytes(StandardCharsets.US_ASCII);
+    private static final String PKCS1_LABEL = "RSA PRIVATE KEY";
+    private static final String PKCS8_LABEL = "PRIVATE KEY";
+    /**
+     * The DER encoding of the rsaEncryption OID 1.2.840.113549.1.1.1, without tag and length.
+     */
+    private static final byte[] RSA_ENCRYPTION = {0x2A, (byte) 0x86, 0x48, (byte) 0x86, (byte) 0xF7, 0x0D, 1, 1, 1};
+    private static final int[] BASE64 = new int[128];
+
+    static {
+        Arrays.fill(BASE64, -1);
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        for (int i = 0; i < alphabet.length(); i++) {
+            BASE64[alphabet.charAt(i)] = i;
+        }
+    }
+
+    private final ReadableByteChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private final byte[] boundary = new byte[MAX_BOUNDARY_LENGTH];
+    private final byte[] der = new byte[MAX_DER_LENGTH];
+    private boolean eof;
+    private long blocks;
+    private long skipped;
+    private long unrecoverable;
+
+    public PemKeyReader(ReadableByteChannel channel) {
+        this.channel = channel;
+        this.buffer.flip();
+    }
+
+    private int read() throws IOException {
+        while (!buffer.hasRemaining()) {
+            if (eof) {
+                return -1;
+            }
+            buffer.clear();
+            eof = channel.read(buffer) < 0;
+            buffer.flip();
+        }
+        return buffer.get() & 0xff;
+    }
+
+    /**
+     * Read the rest of a line into <code>boundary</code>, keeping at most its first
+     * MAX_BOUNDARY_LENGTH bytes.
+     *
+     * @return the number of bytes kept, or -1 at end of input with nothing read.
+     */
+    private int readBoundaryLine(int first) throws IOException {
+        int length = 0;
+        for (int c = first; c != '\n'; c = read()) {
+            if (c < 0) {
+                return (length == 0) ? -1 : length;
+            }
+            if (c != '\r' && length < MAX_BOUNDARY_LENGTH) {
+                boundary[length++] = (byte) c;
+            }
+        }
+        return length;
+    }
+
+    private static boolean regionMatches(byte[] bytes, int offset, byte[] expected) {
+        if (offset < 0 || offset + expected.length > bytes.length) {
+            return false;
+        }
+        for (int i = 0; i < expected.length; i++) {
+            if (bytes[offset + i] != expected[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the label of a "-----BEGIN label-----" line, or null if the line is not one.
+     */
+    private String beginLabel(int length) {
+        if (length < BEGIN.length + DASHES.length || !regionMatches(boundary, 0, BEGIN)
+                || !regionMatches(boundary, length - DASHES.length, DASHES)) {
+            return null;
+        }
+        return new String(boundary, BEGIN.length, length - BEGIN.length - DASHES.length, StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Decode the base64 body of a block into <code>der</code>, up to and including its END line.
+     *
+     * @return the number of DER bytes, or -1 if the body was not plain base64 or too long.
+     */
+    private int decodeBody() throws IOException {
+        int length = 0;
+        int bits = 0;
+        int accumulator = 0;
+        boolean valid = true;
+        boolean lineStart = true;
+        for (int c = read(); c >= 0; c = read()) {
+            if (c == '-' && lineStart) {
+                readBoundaryLine(c);
+                return valid ? length : -1;
+            }
+            lineStart = (c == '\n');
+            if (c == '\n' || c == '\r' || c == ' ' || c == '\t' || c == '=' || !valid) {
+                continue;
+            }
+            int value = (c < 128) ? BASE64[c] : -1;
+            if (value < 0) {
+                // includes the ':' of "Proc-Type: 4,ENCRYPTED" headers
+                valid = false;
+                continue;
+            }
+            accumulator = (accumulator << 6) | value;
+            bits += 6;
+            if (bits >= 8) {
+                bits -= 8;
+                if (length == MAX_DER_LENGTH) {
+                    valid = false;
+                    continue;
+                }
+                der[length++] = (byte) (accumulator >>> bits);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the next RSA private key in the input, or null at the end of the input.
+     */
+    public RsaKeyFields next() throws IOException {
+        for (int c = read(); c >= 0; c = read()) {
+            String label = beginLabel(readBoundaryLine(c));
+            if (label == null) {
+                continue;
+            }
+            long index = blocks++;
+            boolean pkcs1 = label.equals(PKCS1_LABEL);
+            if (!pkcs1 && !label.equals(PKCS8_LABEL)) {
+                // still decode, to find the END line without mistaking its body for boundaries
+                decodeBody();
+                skipped++;
+                continue;
+            }
+            int length = decodeBody();
+            RsaKeyFields fields = null;
+            if (length > 0) {
+                try {
+                    Der input = new Der(der, 0, length);
+                    fields = pkcs1 ? parsePkcs1(index, input) : parsePkcs8(index, input);
+                } catch (IllegalArgumentException | ArithmeticException ex) {
+                    fields = null;
+                }
+            }
+            if (fields != null) {
+                return fields;
+            }
+            skipped++;
+        }
+        return null;
+    }
+
+    /**
+     * @return the number of PEM blocks so far that did not yield an RSA private key.
+     */
+    public long getSkippedCount() {
+        return skipped;
+    }
+
+    /**
+     * @return the number of keys so far that <code>recoverAll()</code> could not complete.
+     */
+    public long getUnrecoverableCount() {
+        return unrecoverable;
+    }
+
+    private static RsaKeyFields parsePkcs1(long index, Der input) {
+        Der key = input.sequence();
+        BigInteger version = key.integer();
+        BigInteger n = key.integer();
+        BigInteger e = key.integer();
+        BigInteger d = key.integer();
+        BigInteger p = key.integer();
+        BigInteger q = key.integer();
+        BigInteger dp = key.integer();
+        BigInteger dq = key.integer();
+        BigInteger qInv = key.integer();
+        // version 1 means otherPrimeInfos follow, so p and q are only two of the primes
+        boolean multiPrime = version.signum() != 0;
+        RSAPrivateCrtKeySpec crtKeySpec = null;
+        if (!multiPrime && p.signum() > 0 && q.signum() > 0) {
+            crtKeySpec = new RSAPrivateCrtKeySpec(n, e, d, p, q, dp, dq, qInv);
+        }
+        return new RsaKeyFields(index, n, e, d, multiPrime, crtKeySpec);
+    }
+
+    /**
+     * @return the key, or null if it is not an RSA key.
+     */
+    private static RsaKeyFields parsePkcs8(long index, Der input) {
+        Der info = input.sequence();
+        info.integer();
+        Der algorithm = info.sequence();
+        if (!algorithm.isObjectIdentifier(RSA_ENCRYPTION)) {
+            return null;
+        }
+        return parsePkcs1(index, info.octetString());
+    }
+
+    /**
+     * Just enough of a DER reader for RSA private keys. Errors throw IllegalArgumentException.
+     */
+    private static final class Der {
+        private final byte[] bytes;
+        private int pos;
+        private final int end;
+
+        Der(byte[] bytes, int pos, int end) {
+            this.bytes = bytes;
+            this.pos = pos;
+            this.end = end;
+        }
+
+        /**
+         * @return the contents of the next element, after checking that it has tag <code>tag</code>.
+         */
+        private Der element(int tag) {
+            if (pos + 2 > end || (bytes[pos] & 0xff) != tag) {
+                throw new IllegalArgumentException("expected DER tag " + tag);
+            }
+            pos++;
+            int length = bytes[pos++] & 0xff;
+            if (length > 0x7f) {
+                int count = length & 0x7f;
+                if (count > 3 || pos + count > end) {
+                    throw new IllegalArgumentException("bad DER length");
+                }
+                length = 0;
+                while (count-- > 0) {
+                    length = (length << 8) | (bytes[pos++] & 0xff);
+                }
+            }
+            if (length > end - pos) {
+                throw new IllegalArgumentException("DER element overruns its container");
+            }
+            Der contents = new Der(bytes, pos, pos + length);
+            pos += length;
+            return contents;
+        }
+
+        Der sequence() {
+            return element(0x30);
+        }
+
+        Der octetString() {
+            return element(0x04);
+        }
+
+        BigInteger integer() {
+            Der contents = element(0x02);
+            if (contents.end == contents.pos) {
+                throw new IllegalArgumentException("empty DER integer");
+            }
+            return new BigInteger(bytes, contents.pos, contents.end - contents.pos);
+        }
+
+        boolean isObjectIdentifier(byte[] oid) {
+            Der contents = element(0x06);
+            return contents.end - contents.pos == oid.length && regionMatches(bytes, contents.pos, oid);
+        }
+    }
+
+    /**
+     * Feed every key in the input to <code>consumer</code> with its CRT key spec, recovering
+     * the spec from (n, e, d) with <code>recovery</code> when the encoding lacks it. Keys with
+     * more than two primes, keys whose d does not belong to (n, e), and keys whose n could not
+     * be split are not consumed but counted by <code>getUnrecoverableCount()</code>. Recovery
+     * tries a bounded number of bases, so no single block can stall the stream.
+     *
+     * @return the number of keys consumed.
+     */
+    public long recoverAll(AdaptiveCrtRecovery recovery, BiConsumer<RsaKeyFields, RSAPrivateCrtKeySpec> consumer)
+            throws IOException {
+        long count = 0;
+        RsaKeyFields fields;
+        while ((fields = next()) != null) {
+            if (fields.isMultiPrime()) {
+                unrecoverable++;
+                continue;
+            }
+            RSAPrivateCrtKeySpec keySpec;
+            try {
+                keySpec = fields.toCrtKeySpec(recovery);
+            } catch (IllegalArgumentException ex) {
+                unrecoverable++;
+                continue;
+            }
+            consumer.accept(fields, keySpec);
+            count++;
+        }
+        return count;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Recover the CRT parameters of every key in a PEM file and print statistics.
+     *
+     * @param args the PEM file.
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+        AdaptiveCrtRecovery recovery = new AdaptiveCrtRecovery();
+        long start = System.nanoTime();
+        try (PemKeyReader reader = new PemKeyReader(FileChannel.open(Paths.get(args[0]), StandardOpenOption.READ))) {
+            long count = reader.recoverAll(recovery, (fields, keySpec) -> {
+                assert keySpec.getPrimeP().multiply(keySpec.getPrimeQ()).equals(fields.getModulus());
+            });
+            System.out.printf("%d keys, %d unrecoverable, %d skipped blocks in %.1f ms%n", count,
+                    reader.getUnrecoverableCount(), reader.getSkippedCount(), (System.nanoTime() - start) / 1e6);
+        }
+        System.out.print(recovery);
+    }
+}
@@ -0,0 +1,314 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2020. James K Polk
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package com.github.jameskpolk;
+
+import java.math.BigInteger;
+import java.security.KeyFactory;
+import java.security.NoSuchAlgorithmException;
+import java.security.interfaces.RSAPrivateCrtKey;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.RSAPrivateCrtKeySpec;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Recover complete RSA CRT private keys from large numbers of (n, e, d) triples by
+ * spreading the calls to <code>RSACrtFromD.createCrtKeySpec()</code> over a
+ * work-stealing pool. Inputs are pulled from an iterator one batch at a time so that
+ * arbitrarily long inputs can be processed in bounded memory.
+ */
+public class RSACrtBatchRecovery implements AutoCloseable {
+
+    private static final ThreadLocal<KeyFactory> RSA_KEY_FAC = ThreadLocal.withInitial(() -> {
+        try {
+            return KeyFactory.getInstance("RSA");
+        } catch (NoSuchAlgorithmException e) {
+            throw new Error(e);
+        }
+    });
+
+    /**
+     * The non-CRT private key material of a single RSA key.
+     */
+    public static class KeyTriple {
+        private final BigInteger n;
+        private final BigInteger e;
+        private final BigInteger d;
+
+        public KeyTriple(BigInteger n, BigInteger e, BigInteger d) {
+            this.n = n;
+            this.e = e;
+            this.d = d;
+        }
+
+        public BigInteger getModulus() {
+            return n;
+        }
+
+        public BigInteger getPublicExponent() {
+            return e;
+        }
+
+        public BigInteger getPrivateExponent() {
+            return d;
+        }
+    }
+
+    /**
+     * An RSA public key together with the CRT exponent dp = d mod (p-1) of one of its primes.
+     */
+    public static class KeyWithCrtExponent {
+        private final BigInteger n;
+        private final BigInteger e;
+        private final BigInteger dp;
+
+        public KeyWithCrtExponent(BigInteger n, BigInteger e, BigInteger dp) {
+            this.n = n;
+            this.e = e;
+            this.dp = dp;
+        }
+
+        public BigInteger getModulus() {
+            return n;
+        }
+
+        public BigInteger getPublicExponent() {
+            return e;
+        }
+
+        public BigInteger getPrimeExponentP() {
+            return dp;
+        }
+    }
+
+    /**
+     * Timing for one batch of recovered keys.
+     */
+    public static class BatchStats {
+        private final int batchNumber;
+        private final int keyCount;
+        private final long elapsedNanos;
+
+        BatchStats(int batchNumber, int keyCount, long elapsedNanos) {
+            this.batchNumber = batchNumber;
+            this.keyCount = keyCount;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        public int getBatchNumber() {
+            return batchNumber;
+        }
+
+        public int getKeyCount() {
+            return keyCount;
+        }
+
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        public double keysPerSecond() {
+            return elapsedNanos == 0 ? 0.0 : keyCount * 1e9 / elapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("batch %d: %d keys in %.3f ms (%.1f keys/s)",
+                    batchNumber, keyCount, elapsedNanos / 1e6, keysPerSecond());
+        }
+    }
+
+    private final ForkJoinPool pool;
+    private final int batchSize;
+
+    /**
+     * Create a recovery engine that uses every available processor.
+     */
+    public RSACrtBatchRecovery() {
+        this(Runtime.getRuntime().availableProcessors(), 1024);
+    }
+
+    /**
+     * @param parallelism the number of worker threads.
+     * @param batchSize   the number of inputs pulled from the iterator and timed together.
+     */
+    public RSACrtBatchRecovery(int parallelism, int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("batchSize must be positive");
+        }
+        this.pool = new ForkJoinPool(parallelism);
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Recover every key, returning the results in input order. This holds all the
+     * results in memory; use <code>recover()</code> to stream very large inputs.
+     *
+     * @param inputs the (n, e, d) triples.
+     * @return the recovered keys, in the same order as the inputs.
+     */
+    public List<RSAPrivateCrtKey> recoverAll(Iterator<KeyTriple> inputs) throws InvalidKeySpecException {
+        List<RSAPrivateCrtKey> result = new ArrayList<>();
+        recover(inputs, true, (triple, key) -> result.add(key), stats -> {
+        });
+        return result;
+    }
+
+    /**
+     * Recover every key and hand each one to <code>sink</code> together with the triple
+     * it came from. The sink is always called from the calling thread.
+     *
+     * @param inputs        the (n, e, d) triples.
+     * @param ordered       if true the sink sees keys in input order, otherwise in
+     *                      completion order within each batch.
+     * @param sink          receives each input and its recovered key.
+     * @param statsListener receives the timing of each batch once it completes.
+     */
+    public void recover(Iterator<KeyTriple> inputs, boolean ordered,
+                        BiConsumer<KeyTriple, RSAPrivateCrtKey> sink,
+                        Consumer<BatchStats> statsListener) throws InvalidKeySpecException {
+        run(inputs, t -> RSACrtFromD.createCrtKeySpec(t.n, t.e, t.d), ordered, sink, statsListener);
+    }
+
+    /**
+     * Same as <code>recover()</code> for keys where only a CRT exponent is known, using
+     * <code>RSACrtFromD.createCrtKeySpecFromCrtExponent()</code>.
+     */
+    public void recoverFromCrtExponents(Iterator<KeyWithCrtExponent> inputs, boolean ordered,
+                                        BiConsumer<KeyWithCrtExponent, RSAPrivateCrtKey> sink,
+                                        Consumer<BatchStats> statsListener) throws InvalidKeySpecException {
+        run(inputs, k -> RSACrtFromD.createCrtKeySpecFromCrtExponent(k.n, k.e, k.dp), ordered, sink, statsListener);
+    }
+
+    <T> void run(Iterator<T> inputs, Function<T, RSAPrivateCrtKeySpec> recovery, boolean ordered,
+                 BiConsumer<T, RSAPrivateCrtKey> sink,
+                 Consumer<BatchStats> statsListener) throws InvalidKeySpecException {
+        List<T> batch = new ArrayList<>(batchSize);
+        int batchNumber = 0;
+        while (inputs.hasNext()) {
+            batch.clear();
+            while (batch.size() < batchSize && inputs.hasNext()) {
+                batch.add(inputs.next());
+            }
+            long start = System.nanoTime();
+            if (ordered) {
+                runOrdered(batch, recovery, sink);
+            } else {
+                runUnordered(batch, recovery, sink);
+            }
+            statsListener.accept(new BatchStats(batchNumber++, batch.size(), System.nanoTime() - start));
+        }
+    }
+
+    private <T> void runOrdered(List<T> batch, Function<T, RSAPrivateCrtKeySpec> recovery,
+                                BiConsumer<T, RSAPrivateCrtKey> sink) throws InvalidKeySpecException {
+        List<Future<RSAPrivateCrtKey>> futures = new ArrayList<>(batch.size());
+        for (T input : batch) {
+            futures.add(pool.submit(() -> generate(recovery.apply(input))));
+        }
+        for (int i = 0; i < batch.size(); i++) {
+            sink.accept(batch.get(i), await(futures.get(i)));
+        }
+    }
+
+    private <T> void runUnordered(List<T> batch, Function<T, RSAPrivateCrtKeySpec> recovery,
+                                  BiConsumer<T, RSAPrivateCrtKey> sink) throws InvalidKeySpecException {
+        CompletionService<Integer> completion = new ExecutorCompletionService<>(pool);
+        RSAPrivateCrtKey[] keys = new RSAPrivateCrtKey[batch.size()];
+        for (int i = 0; i < batch.size(); i++) {
+            final int index = i;
+            completion.submit(() -> {
+                keys[index] = generate(recovery.apply(batch.get(index)));
+                return index;
+            });
+        }
+        for (int i = 0; i < batch.size(); i++) {
+            int index;
+            try {
+                index = await(completion.take());
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(ex);
+            }
+            sink.accept(batch.get(index), keys[index]);
+        }
+    }
+
+    private static RSAPrivateCrtKey generate(RSAPrivateCrtKeySpec keySpec) throws InvalidKeySpecException {
+        return (RSAPrivateCrtKey) RSA_KEY_FAC.get().generatePrivate(keySpec);
+    }
+
+    private static <V> V await(Future<V> future) throws InvalidKeySpecException {
+        try {
+            return future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(ex);
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof InvalidKeySpecException) {
+                throw (InvalidKeySpecException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    @Override
+    public void close() {
+        pool.shutdown();
+    }
+
+    /**
+     * Generate some RSA keypairs and recover their CRT parameters in batches,
+     * printing the throughput of each batch.
+     *
+     * @param args these are ignored.
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+        List<KeyTriple> triples = new ArrayList<>();
+        for (RSAPrivateCrtKey key : new TestKeyCorpus().keys(1, 1024, TestKeyCorpus.F4, 256)) {
+            triples.add(new KeyTriple(key.getModulus(), key.getPublicExponent(), key.getPrivateExponent()));
+        }
+        try (RSACrtBatchRecovery recovery = new RSACrtBatchRecovery(Runtime.getRuntime().availableProcessors(), 64)) {
+            recovery.recover(triples.iterator(), true, (triple, key) -> {
+                assert key.getPrimeP().multiply(key.getPrimeQ()).equals(triple.getModulus());
+            }, System.out::println);
+        }
+    }
+}
@@ -33,44 +33,183 @@ import java.security.interfaces.RSAPrivateCrtKey;
 import java.security.interfaces.RSAPrivateKey;
 import java.security.interfaces.RSAPublicKey;
 import java.security.spec.InvalidKeySpecException;
+import java.security.spec.RSAMultiPrimePrivateCrtKeySpec;
+import java.security.spec.RSAOtherPrimeInfo;
 import java.security.spec.RSAPrivateCrtKeySpec;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class RSACrtFromD {
 
     private static final Random RAND = new Random();
 
+    private static final ExecutorService WITNESS_POOL = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "findFactor-witness");
+        thread.setDaemon(true);
+        return thread;
+    });
+
     /**
      * Find a factor of n by following the algorithm outlined in Handbook of Applied Cryptography, section
-     * 8.2.2(i). See http://cacr.uwaterloo.ca/hac/about/chap8.pdf.
+     * 8.2.2(i). See http://cacr.uwaterloo.ca/hac/about/chap8.pdf. The repeated squarings
+     * are done in place with a <code>MontgomeryContext</code> so the inner loop neither
+     * allocates nor divides. Bases, squarings and time are reported to
+     * <code>RecoveryMetrics</code> when it is enabled.
      *
      * @param e the RSA public exponent.
      * @param d the RSA private exponent.
-     * @param n the RSA modulus.
+     * @param n the RSA modulus, which must be odd.
      * @return a BigInteger non-trivial proper factor of n
+     * @throws IllegalArgumentException if ed - 1 is not a multiple of lambda(n).
      */
     public static BigInteger findFactor(BigInteger e, BigInteger d, BigInteger n) {
+        return findFactor(e, d, n, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Same as <code>findFactor(e, d, n)</code>, but give up after <code>maxBases</code>
+     * bases. Each base splits a product of two distinct odd primes with probability at
+     * least 1/2, so a few dozen bases only fail if n is not such a product.
+     *
+     * @param e        the RSA public exponent.
+     * @param d        the RSA private exponent.
+     * @param n        the RSA modulus, which must be odd.
+     * @param maxBases the maximum number of bases a to try.
+     * @return a BigInteger non-trivial proper factor of n, or null if none was found.
+     * @throws IllegalArgumentException if ed - 1 is not a multiple of lambda(n).
+     */
+    public static BigInteger findFactor(BigInteger e, BigInteger d, BigInteger n, int maxBases) {
         BigInteger edMinus1 = e.multiply(d).subtract(BigInteger.ONE);
         int s = edMinus1.getLowestSetBit();
         BigInteger t = edMinus1.shiftRight(s);
 
-        for (int aInt = 2; true; aInt++) { // this sequence of a's should do just as well as random
-            BigInteger aPow = BigInteger.valueOf(aInt).modPow(t, n);
-            for (int i = 1; i <= s; i++) {
-                if (aPow.equals(BigInteger.ONE)) {
-                    break;
-                }
-                if (aPow.equals(n.subtract(BigInteger.ONE))) {
-                    break;
-                }
-                BigInteger aPowSquared = aPow.multiply(aPow).mod(n);
-                if (aPowSquared.equals(BigInteger.ONE)) {
-                    return aPow.subtract(BigInteger.ONE).gcd(n);
+        RecoveryMetrics.Trace trace = RecoveryMetrics.start(RecoveryMetrics.Operation.FIND_FACTOR, n);
+        MontgomeryContext mont = new MontgomeryContext(n);
+        long[] aPow = mont.newElement();
+        long[] prev = mont.newElement();
+        BigInteger factor = null;
+        try {
+            // this sequence of a's should do just as well as random
+            for (int aInt = 2; factor == null && aInt - 2 < maxBases; aInt++) {
+                factor = tryWitness(aInt, t, s, mont, aPow, prev, trace);
+            }
+        } finally {
+            if (trace != null) {
+                trace.finish(factor != null);
+            }
+        }
+        return factor;
+    }
+
+    /**
+     * Same method as <code>findFactor()</code>, but several bases a are tried at once on
+     * separate threads of <code>executor</code>. The first non-trivial factor found is
+     * returned and the remaining tasks are cancelled. A cancelled task stops at its next
+     * check between modular exponentiations, since <code>modPow()</code> itself cannot be
+     * interrupted.
+     *
+     * @param e         the RSA public exponent.
+     * @param d         the RSA private exponent.
+     * @param n         the RSA modulus, which must be odd.
+     * @param executor  runs the witness tasks; it needs at least <code>witnesses</code> threads
+     *                  to run them all concurrently.
+     * @param witnesses the number of bases tried concurrently.
+     * @return a BigInteger non-trivial proper factor of n
+     * @throws InterruptedException     if the calling thread is interrupted while waiting.
+     * @throws IllegalArgumentException if ed - 1 is not a multiple of lambda(n).
+     */
+    public static BigInteger findFactorParallel(BigInteger e, BigInteger d, BigInteger n,
+                                                ExecutorService executor, int witnesses) throws InterruptedException {
+        BigInteger edMinus1 = e.multiply(d).subtract(BigInteger.ONE);
+        int s = edMinus1.getLowestSetBit();
+        BigInteger t = edMinus1.shiftRight(s);
+
+        List<Callable<BigInteger>> tasks = new ArrayList<>();
+        for (int w = 0; w < witnesses; w++) {
+            final int firstBase = 2 + w;
+            tasks.add(() -> {
+                MontgomeryContext mont = new MontgomeryContext(n);
+                long[] aPow = mont.newElement();
+                long[] prev = mont.newElement();
+                for (int aInt = firstBase; true; aInt += witnesses) {
+                    if (Thread.currentThread().isInterrupted()) {
+                        throw new InterruptedException();
+                    }
+                    BigInteger factor = tryWitness(aInt, t, s, mont, aPow, prev, null);
+                    if (factor != null) {
+                        return factor;
+                    }
                 }
-                aPow = aPowSquared;
+            });
+        }
+        try {
+            return executor.invokeAny(tasks);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IllegalArgumentException) {
+                throw (IllegalArgumentException) ex.getCause();
             }
+            throw new IllegalStateException(ex.getCause());
         }
+    }
 
+    /**
+     * Same as <code>findFactorParallel(e, d, n, executor, witnesses)</code>, using a shared
+     * pool of daemon threads and one witness per processor, up to four.
+     */
+    public static BigInteger findFactorParallel(BigInteger e, BigInteger d, BigInteger n) throws InterruptedException {
+        int witnesses = Math.min(4, Runtime.getRuntime().availableProcessors());
+        return findFactorParallel(e, d, n, WITNESS_POOL, witnesses);
+    }
+
+    /**
+     * Run the squaring chain of <code>findFactor()</code> for a single base.
+     *
+     * @param trace counts the work done, or null.
+     * @return a non-trivial factor of n, or null if this base does not yield one.
+     * @throws IllegalArgumentException if a**(ed - 1) != 1 mod n, which proves d wrong.
+     */
+    private static BigInteger tryWitness(int aInt, BigInteger t, int s, MontgomeryContext mont,
+                                         long[] aPow, long[] prev, RecoveryMetrics.Trace trace) {
+        BigInteger n = mont.getModulus();
+        long start = (trace != null) ? System.nanoTime() : 0;
+        mont.toMontgomery(BigInteger.valueOf(aInt).modPow(t, n), aPow);
+        if (trace != null) {
+            trace.bases++;
+            trace.modPowNanos += System.nanoTime() - start;
+        }
+        int i;
+        for (i = 1; i <= s; i++) {
+            if (mont.isOne(aPow)) {
+                break;
+            }
+            if (mont.isMinusOne(aPow)) {
+                break;
+            }
+            System.arraycopy(aPow, 0, prev, 0, prev.length);
+            mont.square(aPow);
+            if (trace != null) {
+                trace.squarings++;
+            }
+            if (mont.isOne(aPow)) {
+                start = (trace != null) ? System.nanoTime() : 0;
+                BigInteger factor = mont.fromMontgomery(prev).subtract(BigInteger.ONE).gcd(n);
+                if (trace != null) {
+                    trace.gcdNanos += System.nanoTime() - start;
+                }
+                return factor;
+            }
+        }
+        if (i > s && !mont.isOne(aPow)) {
+            // the chain ran to its end, so aPow is a**(ed - 1), and it is not 1
+            throw new IllegalArgumentException("ed - 1 is not a multiple of lambda(n)");
+        }
+        return null;
     }
 
     /**
@@ -87,19 +226,34 @@ public class RSACrtFromD {
         BigInteger edMinus1 = e.multiply(d).subtract(BigInteger.ONE);
         int s = edMinus1.getLowestSetBit();
         BigInteger t = edMinus1.shiftRight(s);
+        RecoveryMetrics.Trace trace = RecoveryMetrics.start(RecoveryMetrics.Operation.FIND_FACTOR_SLOW, n);
         while (true) {
             BigInteger a = randomZnStar(n);
             // a is now a member of [1, n-1]
+            if (trace != null) {
+                trace.bases++;
+            }
             for (int i = 1; i <= s; i++) {
+                long start = (trace != null) ? System.nanoTime() : 0;
                 BigInteger temp_iMinus1 = a.modPow(t.shiftLeft(i - 1), n);
                 BigInteger temp_i = a.modPow(t.shiftLeft(i), n);
+                if (trace != null) {
+                    trace.squarings++;
+                    trace.modPowNanos += System.nanoTime() - start;
+                }
                 if (temp_i.equals(BigInteger.ONE)) {
                     if (temp_iMinus1.equals(BigInteger.ONE) || temp_iMinus1.equals(n.subtract(BigInteger.ONE))) {
                         // No solutions for this value of a.
                         break;
                     } else {
                         // found factor.
-                        return temp_iMinus1.subtract(BigInteger.ONE).gcd(n);
+                        start = (trace != null) ? System.nanoTime() : 0;
+                        BigInteger factor = temp_iMinus1.subtract(BigInteger.ONE).gcd(n);
+                        if (trace != null) {
+                            trace.gcdNanos += System.nanoTime() - start;
+                            trace.finish(true);
+                        }
+                        return factor;
                     }
                 }
             }
@@ -137,7 +291,38 @@ public class RSACrtFromD {
         BigInteger e = rsaPub.getPublicExponent();
         BigInteger d = rsaPriv.getPrivateExponent();
         BigInteger n = rsaPub.getModulus();
+        RSAPrivateCrtKeySpec keySpec = createCrtKeySpec(n, e, d);
+        KeyFactory kf = KeyFactory.getInstance("RSA");
+        return (RSAPrivateCrtKey) kf.generatePrivate(keySpec);
+
+    }
+
+    /**
+     * Compute all the CRT parameters from e, d, and n by factoring the modulus
+     * with <code>findFactor()</code>.
+     *
+     * @param n the RSA modulus.
+     * @param e the RSA public exponent.
+     * @param d the RSA private exponent.
+     * @return an RSAPrivateCrtKeySpec containing all the CRT parameters.
+     */
+    public static RSAPrivateCrtKeySpec createCrtKeySpec(BigInteger n, BigInteger e, BigInteger d) {
         BigInteger p = findFactor(e, d, n);
+        return createCrtKeySpec(n, e, d, p);
+    }
+
+    /**
+     * Compute all the CRT parameters once a non-trivial factor of n is known. The
+     * larger of the two primes becomes p.
+     *
+     * @param n      the RSA modulus.
+     * @param e      the RSA public exponent.
+     * @param d      the RSA private exponent.
+     * @param factor a non-trivial proper factor of n.
+     * @return an RSAPrivateCrtKeySpec containing all the CRT parameters.
+     */
+    public static RSAPrivateCrtKeySpec createCrtKeySpec(BigInteger n, BigInteger e, BigInteger d, BigInteger factor) {
+        BigInteger p = factor;
         BigInteger q = n.divide(p);
         if (p.compareTo(q) < 0) {
             BigInteger t = p;
@@ -148,10 +333,171 @@ public class RSACrtFromD {
         BigInteger exp1 = d.mod(p.subtract(BigInteger.ONE));
         BigInteger exp2 = d.mod(q.subtract(BigInteger.ONE));
         BigInteger coeff = q.modInverse(p);
-        RSAPrivateCrtKeySpec keySpec = new RSAPrivateCrtKeySpec(n, e, d, p, q, exp1, exp2, coeff);
+        return new RSAPrivateCrtKeySpec(n, e, d, p, q, exp1, exp2, coeff);
+    }
+
+    /**
+     * Find a factor of n from the public exponent and a single CRT exponent. Since
+     * e*dp = 1 mod (p-1), m**(e*dp) = m mod p for every m, so gcd(m**(e*dp) - m, n) is p
+     * unless the same congruence happens to hold mod q as well, which is unlikely.
+     *
+     * @param e  the RSA public exponent.
+     * @param dp the CRT exponent d mod (p-1) of the prime p sought; dq works the same way for q.
+     * @param n  the RSA modulus.
+     * @return the prime factor of n that dp belongs to.
+     * @throws IllegalArgumentException if dp is not a CRT exponent for a factor of n.
+     */
+    public static BigInteger findFactorFromCrtExponent(BigInteger e, BigInteger dp, BigInteger n) {
+        BigInteger exponent = e.multiply(dp);
+        for (int mInt = 2; mInt < 100; mInt++) {
+            BigInteger m = BigInteger.valueOf(mInt);
+            BigInteger g = m.modPow(exponent, n).subtract(m).gcd(n);
+            if (g.equals(BigInteger.ONE)) {
+                break;
+            }
+            if (!g.equals(n)) {
+                return g;
+            }
+        }
+        throw new IllegalArgumentException("dp is not a CRT exponent of a factor of n");
+    }
+
+    /**
+     * Compute all the CRT parameters from e, n, and the CRT exponent dp. The private
+     * exponent is taken to be inv(e) mod lambda(n).
+     *
+     * @param n  the RSA modulus.
+     * @param e  the RSA public exponent.
+     * @param dp the CRT exponent d mod (p-1).
+     * @return an RSAPrivateCrtKeySpec containing all the CRT parameters.
+     */
+    public static RSAPrivateCrtKeySpec createCrtKeySpecFromCrtExponent(BigInteger n, BigInteger e, BigInteger dp) {
+        BigInteger p = findFactorFromCrtExponent(e, dp, n);
+        BigInteger pMinus1 = p.subtract(BigInteger.ONE);
+        BigInteger qMinus1 = n.divide(p).subtract(BigInteger.ONE);
+        BigInteger lambda = pMinus1.multiply(qMinus1).divide(pMinus1.gcd(qMinus1));
+        return createCrtKeySpec(n, e, e.modInverse(lambda), p);
+    }
+
+    /**
+     * Create a complete RSA CRT private key from an RSA public key and the CRT exponent
+     * dp of one of its primes.
+     *
+     * @param rsaPub RSA public key, includes public exponent e and modulus n.
+     * @param dp     the CRT exponent d mod (p-1).
+     * @return an RSAPrivateCrtKey containing all the CRT parameters.
+     */
+    public static RSAPrivateCrtKey createCrtKeyFromCrtExponent(RSAPublicKey rsaPub, BigInteger dp) throws
+            NoSuchAlgorithmException, InvalidKeySpecException {
+        RSAPrivateCrtKeySpec keySpec = createCrtKeySpecFromCrtExponent(rsaPub.getModulus(),
+                rsaPub.getPublicExponent(), dp);
         KeyFactory kf = KeyFactory.getInstance("RSA");
         return (RSAPrivateCrtKey) kf.generatePrivate(keySpec);
+    }
+
+    /**
+     * Split n completely into its distinct primes, for two-prime and multi-prime keys
+     * alike. This is <code>findFactor()</code> generalized: ed - 1 = t * (2**s) is a
+     * multiple of lambda(m) for every divisor m of n, so the chain a**t, a**2t, ... mod n
+     * reduced mod any unsplit piece m of n splits it by gcd(a**(2**i t) - 1, m) just as it
+     * would split n. One modPow and one squaring chain per base therefore serve every
+     * piece at once, and most keys are split completely by a single base. A piece counts
+     * as prime once it passes a strong probable-prime test to base 2, one modPow on the
+     * piece; <code>isProbablePrime()</code> would cost more than the whole split.
+     *
+     * @param e the RSA public exponent.
+     * @param d the RSA private exponent.
+     * @param n the RSA modulus, a product of distinct odd primes.
+     * @return the primes of n in descending order.
+     * @throws IllegalArgumentException if ed - 1 is not a multiple of lambda(n), or n could not be split.
+     */
+    public static BigInteger[] findAllFactors(BigInteger e, BigInteger d, BigInteger n) {
+        BigInteger edMinus1 = e.multiply(d).subtract(BigInteger.ONE);
+        int s = edMinus1.getLowestSetBit();
+        BigInteger t = edMinus1.shiftRight(s);
 
+        List<BigInteger> primes = new ArrayList<>();
+        List<BigInteger> composites = new ArrayList<>();
+        composites.add(n);
+        for (int aInt = 2; !composites.isEmpty(); aInt++) {
+            if (aInt > 1000) {
+                throw new IllegalArgumentException("n could not be split; is it square-free?");
+            }
+            BigInteger y = BigInteger.valueOf(aInt).modPow(t, n);
+            for (int i = 0; !y.equals(BigInteger.ONE); i++) {
+                if (i == s) {
+                    // y is a**(ed - 1), and it is not 1
+                    throw new IllegalArgumentException("ed - 1 is not a multiple of lambda(n)");
+                }
+                BigInteger yMinus1 = y.subtract(BigInteger.ONE);
+                for (int j = composites.size() - 1; j >= 0; j--) {
+                    BigInteger m = composites.get(j);
+                    BigInteger g = yMinus1.gcd(m);
+                    if (!g.equals(BigInteger.ONE) && !g.equals(m)) {
+                        composites.remove(j);
+                        for (BigInteger piece : new BigInteger[]{g, m.divide(g)}) {
+                            (isStrongProbablePrime(piece) ? primes : composites).add(piece);
+                        }
+                    }
+                }
+                if (composites.isEmpty()) {
+                    break;
+                }
+                y = y.multiply(y).mod(n);
+            }
+        }
+        primes.sort(Comparator.reverseOrder());
+        return primes.toArray(new BigInteger[0]);
+    }
+
+    /**
+     * The Miller-Rabin test to base 2, which no composite factor of an RSA modulus made of
+     * random primes will realistically pass.
+     */
+    private static boolean isStrongProbablePrime(BigInteger m) {
+        BigInteger mMinus1 = m.subtract(BigInteger.ONE);
+        int s = mMinus1.getLowestSetBit();
+        BigInteger x = BigInteger.TWO.modPow(mMinus1.shiftRight(s), m);
+        if (x.equals(BigInteger.ONE) || x.equals(mMinus1)) {
+            return true;
+        }
+        for (int i = 1; i < s; i++) {
+            x = x.multiply(x).mod(m);
+            if (x.equals(mMinus1)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Compute all the CRT parameters of a key with any number of primes from e, d, and n.
+     * The primes are in descending order, so p and q are the two largest, and each other
+     * prime r_i gets the coefficient inv(p * q * r_3 * ... * r_(i-1)) mod r_i, as in PKCS#1.
+     * The JDK's "RSA" <code>KeyFactory</code> does not accept multi-prime specs, so no key
+     * object is made.
+     *
+     * @param n the RSA modulus.
+     * @param e the RSA public exponent.
+     * @param d the RSA private exponent.
+     * @return an RSAMultiPrimePrivateCrtKeySpec; its otherPrimeInfo is null for two primes.
+     */
+    public static RSAMultiPrimePrivateCrtKeySpec createMultiPrimeCrtKeySpec(BigInteger n, BigInteger e, BigInteger d) {
+        BigInteger[] primes = findAllFactors(e, d, n);
+        BigInteger p = primes[0];
+        BigInteger q = primes[1];
+        RSAOtherPrimeInfo[] others = null;
+        if (primes.length > 2) {
+            others = new RSAOtherPrimeInfo[primes.length - 2];
+            BigInteger product = p.multiply(q);
+            for (int i = 2; i < primes.length; i++) {
+                BigInteger r = primes[i];
+                others[i - 2] = new RSAOtherPrimeInfo(r, d.mod(r.subtract(BigInteger.ONE)), product.modInverse(r));
+                product = product.multiply(r);
+            }
+        }
+        return new RSAMultiPrimePrivateCrtKeySpec(n, e, d, p, q, d.mod(p.subtract(BigInteger.ONE)),
+                d.mod(q.subtract(BigInteger.ONE)), q.modInverse(p), others);
     }
 
     private static boolean keyEquals(RSAPrivateCrtKey k1, RSAPrivateCrtKey k2) {
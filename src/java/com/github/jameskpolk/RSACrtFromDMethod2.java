@@ -26,6 +26,8 @@
 package com.github.jameskpolk;
 
 import java.math.BigInteger;
+import java.util.Objects;
+import java.util.stream.LongStream;
 
 /**
  * This is based on a comment,
@@ -33,23 +35,125 @@ import java.math.BigInteger;
  */
 public class RSACrtFromDMethod2 {
 
+    /**
+     * Quadratic residues as bitmaps: bit r of SQUARES_MOD_m is set iff r is a square mod m.
+     * 63 * 65 * 11 = 45045, so one small remainder feeds the last three tests.
+     */
+    private static final long SQUARES_MOD_64 = squaresBitmap(64)[0];
+    private static final long[] SQUARES_MOD_63 = squaresBitmap(63);
+    private static final long[] SQUARES_MOD_65 = squaresBitmap(65);
+    private static final long[] SQUARES_MOD_11 = squaresBitmap(11);
+    private static final BigInteger RESIDUE_MODULUS = BigInteger.valueOf(63L * 65L * 11L);
+
+    /**
+     * The discriminants in the k-search are far from random (D = b*b - 4nk*k is always a
+     * square mod 4, for instance), so <code>searchK()</code> and <code>FermatFactorizer</code>
+     * sieve with many more moduli. They are grouped into composite moduli so each k costs
+     * only five table lookups; by the CRT a value is a square mod a composite iff it is a
+     * square mod each factor.
+     */
+    static final int[] SIEVE_MODULI = {
+            64 * 63 * 65, 11 * 17 * 19 * 23, 29 * 31 * 37, 41 * 43 * 47, 53 * 59 * 61
+    };
+    static final long[][] SIEVE_SQUARES = new long[SIEVE_MODULI.length][];
+
+    static {
+        for (int i = 0; i < SIEVE_MODULI.length; i++) {
+            SIEVE_SQUARES[i] = squaresBitmap(SIEVE_MODULI[i]);
+        }
+    }
+
+    private static long[] squaresBitmap(int m) {
+        long[] bits = new long[(m + 63) / 64];
+        for (long x = 0; x < m; x++) {
+            int r = (int) ((x * x) % m);
+            bits[r >>> 6] |= 1L << r;
+        }
+        return bits;
+    }
+
+    static boolean isResidue(long[] bits, int r) {
+        return (bits[r >>> 6] & (1L << r)) != 0;
+    }
+
+    /**
+     * Quickly test whether n could be a perfect square by checking it against the quadratic
+     * residues modulo 64, 63, 65 and 11. Only about 1 in 119 non-squares pass.
+     *
+     * @param n
+     * @return false if n is certainly not a perfect square, true if it might be one.
+     */
+    public static boolean isPossibleSquare(BigInteger n) {
+        if (n.signum() < 0) {
+            return false;
+        }
+        if ((SQUARES_MOD_64 & (1L << (n.intValue() & 63))) == 0) {
+            return false;
+        }
+        int r = n.mod(RESIDUE_MODULUS).intValue();
+        return isResidue(SQUARES_MOD_63, r % 63)
+                && isResidue(SQUARES_MOD_65, r % 65)
+                && isResidue(SQUARES_MOD_11, r % 11);
+    }
+
+    /**
+     * Compute the integer square root of n, the greatest integer less than or equal to the
+     * real-valued square root of n, by Newton's method starting from a double-precision
+     * estimate. The estimate is good to about 50 bits, so only a handful of iterations are
+     * needed even for very large n.
+     *
+     * @param n a non-negative integer
+     * @return the integer square root of n.
+     */
+    public static BigInteger isqrt(BigInteger n) {
+        if (n.signum() <= 0) {
+            if (n.signum() < 0) {
+                throw new ArithmeticException("negative argument");
+            }
+            return BigInteger.ZERO;
+        }
+        if (n.bitLength() < 53) {
+            // n is exactly representable as a double and the rounded root is off by at most one
+            long n64 = n.longValue();
+            long root = (long) Math.sqrt((double) n64);
+            while (root * root > n64) {
+                root--;
+            }
+            while ((root + 1) * (root + 1) <= n64) {
+                root++;
+            }
+            return BigInteger.valueOf(root);
+        }
+        int shift = Math.max(0, n.bitLength() - 100) & ~1;
+        double estimate = Math.sqrt(n.shiftRight(shift).doubleValue());
+        BigInteger x = BigInteger.valueOf((long) estimate).shiftLeft(shift / 2);
+        // One step from any positive guess lands at or above isqrt(n); from there Newton decreases.
+        x = x.add(n.divide(x)).shiftRight(1);
+        while (true) {
+            BigInteger next = x.add(n.divide(x)).shiftRight(1);
+            if (next.compareTo(x) >= 0) {
+                return x;
+            }
+            x = next;
+        }
+    }
+
     /**
      * Compute the integer square root of n, which is defined as the greatest integer
      * less than or equal to the real-valued square root of n. If n is an integer
      * perfect square, n = y*y for integer y, then y is returned, else null is.
+     * Most non-squares are rejected by <code>isPossibleSquare()</code> without computing
+     * any root.
      *
      * @param n
      * @return the integer square root of n is an integer perfect square,
      * null otherwise
      */
     public static BigInteger perfectSqrt(BigInteger n) {
-        BigInteger prev = BigInteger.ZERO;
-        BigInteger current = BigInteger.ONE.shiftLeft(n.bitLength() / 2);
-        while (prev.subtract(current).abs().compareTo(BigInteger.ONE) > 0) {
-            prev = current;
-            current = current.add(n.divide(current)).shiftRight(1);
+        if (!isPossibleSquare(n)) {
+            return null;
         }
-        BigInteger isqrt = prev.min(current);
+        BigInteger isqrt = isqrt(n);
         if (n.equals(isqrt.multiply(isqrt))) {
             return isqrt;
         } else {
@@ -108,29 +212,288 @@ public class RSACrtFromDMethod2 {
         return p;
     }
 
+    /**
+     * The number of values of k that <code>solveForPandK(n, e, d, maxCandidates)</code>
+     * scans before giving up, about a second's work for a 2048-bit modulus. The range of k
+     * is about e*d/n wide, so this covers every key with e below about 2**20 whose d is
+     * inv(e) mod phi(n) or mod lambda(n).
+     */
+    public static final long DEFAULT_MAX_SCAN = 1L << 20;
+
     /**
      * Try different values of k in the equation ed - 1 == k(x-1)(n/x-1), hoping
-     * to find one that results in a solution for x.
+     * to find one that results in a solution for x. Only the values produced by
+     * <code>nextKCandidate()</code> are tried, so the search always terminates, though
+     * for a large e it may take a long time; the bounded overloads do not.
      *
      * @param n
      * @param e
      * @param d
      * @return x (==p) if found, null for failure.
+     * @throws IllegalArgumentException if 2(ed - 1)/n does not fit in a long.
      */
     public static BigInteger solveForPandK(BigInteger n, BigInteger e, BigInteger d) {
-        /**
-         * d is typically about the size of n, therefore e*d is typically about the size of
-         * e*n. Therefore we try multiples of k that are around e.
-         */
-        for (BigInteger k = BigInteger.ONE; true; k = k.add(BigInteger.ONE)) {
-//            if (k.mod(BigInteger.valueOf(500L)).equals(BigInteger.ZERO)) {
-//                System.out.printf("%d,", k);
-//            }
-            BigInteger p = solveForP(n, e, d, k);
-            if (p != null) {
-                return p;
+        return solveForPandK(n, e, d, Long.MAX_VALUE, Long.MAX_VALUE);
+    }
+
+    /**
+     * Same as <code>solveForPandK(n, e, d)</code>, but give up after trying
+     * <code>maxCandidates</code> values of k or scanning <code>DEFAULT_MAX_SCAN</code>
+     * values, whichever comes first.
+     *
+     * @param n
+     * @param e
+     * @param d
+     * @param maxCandidates the maximum number of values of k to try.
+     * @return x (==p) if found, null for failure or if the budget ran out.
+     * @throws IllegalArgumentException if 2(ed - 1)/n does not fit in a long.
+     */
+    public static BigInteger solveForPandK(BigInteger n, BigInteger e, BigInteger d, long maxCandidates) {
+        return solveForPandK(n, e, d, maxCandidates, DEFAULT_MAX_SCAN);
+    }
+
+    /**
+     * Same as <code>solveForPandK(n, e, d)</code>, but give up after trying
+     * <code>maxCandidates</code> values of k, or after scanning <code>maxScan</code>
+     * values for divisors of ed - 1, whichever comes first. The values of k scanned and
+     * solved for are reported to <code>RecoveryMetrics</code> when it is enabled.
+     *
+     * @param n
+     * @param e
+     * @param d
+     * @param maxCandidates the maximum number of values of k to try.
+     * @param maxScan       the maximum number of values of k to test for divisibility.
+     * @return x (==p) if found, null for failure or if the budget ran out.
+     * @throws IllegalArgumentException if 2(ed - 1)/n does not fit in a long.
+     */
+    public static BigInteger solveForPandK(BigInteger n, BigInteger e, BigInteger d, long maxCandidates,
+                                           long maxScan) {
+        BigInteger edMinus1 = e.multiply(d).subtract(BigInteger.ONE);
+        long[] range = kRange(n, edMinus1);
+        long k = range[0];
+        long kEnd = (maxScan < range[1] - k) ? k + maxScan : range[1];
+        int[] words = edMinus1.signum() > 0 ? toWords(edMinus1) : null;
+        RecoveryMetrics.Trace trace = RecoveryMetrics.start(RecoveryMetrics.Operation.SOLVE_FOR_P_AND_K, n);
+        BigInteger result = null;
+        for (long tried = 0; tried < maxCandidates; tried++, k++) {
+            long kScanFrom = k;
+            k = (words != null) ? nextKCandidate(words, edMinus1, k, kEnd) : -1;
+            if (trace != null) {
+                trace.kScanned += ((k < 0) ? kEnd : k + 1) - kScanFrom;
+            }
+            if (k < 0) {
+                break;
+            }
+            if (trace != null) {
+                trace.kCandidates++;
+            }
+            BigInteger p = solveForP(n, e, d, BigInteger.valueOf(k));
+            if (p != null && p.compareTo(BigInteger.ONE) > 0 && n.mod(p).signum() == 0) {
+                result = p;
+                break;
+            }
+        }
+        if (trace != null) {
+            trace.finish(result != null);
+        }
+        return result;
+    }
+
+    /**
+     * Any valid k divides ed - 1, so skip ahead to the next value that does.
+     *
+     * @param edMinus1 ed - 1, which must be positive.
+     * @param k        the first value to consider, at least 1.
+     * @param kEnd     one past the last value to consider.
+     * @return the smallest divisor of ed - 1 in [k, kEnd), or -1 if there is none.
+     */
+    public static long nextKCandidate(BigInteger edMinus1, long k, long kEnd) {
+        return nextKCandidate(toWords(edMinus1), edMinus1, k, kEnd);
+    }
+
+    /**
+     * The divisibility test of <code>nextKCandidate()</code> is a long remainder over
+     * the 32-bit words of ed - 1, which allocates nothing, for every k below 2**47; larger
+     * k fall back to <code>BigInteger.mod()</code>.
+     */
+    private static long nextKCandidate(int[] words, BigInteger edMinus1, long k, long kEnd) {
+        for (; k < kEnd; k++) {
+            boolean divides = (k < (1L << 47))
+                    ? remainder(words, k) == 0
+                    : edMinus1.mod(BigInteger.valueOf(k)).signum() == 0;
+            if (divides) {
+                return k;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the magnitude of the positive x as 32-bit words, most significant first.
+     */
+    private static int[] toWords(BigInteger x) {
+        int[] words = new int[(x.bitLength() + 31) >>> 5];
+        for (int i = 0; i < words.length; i++) {
+            words[words.length - 1 - i] = x.shiftRight(32 * i).intValue();
+        }
+        return words;
+    }
+
+    /**
+     * @return the value of the words, most significant first, mod a divisor below 2**47.
+     * The remainder must stay below 2**31 to shift in a whole word without overflow, so
+     * larger divisors take each word in two halves.
+     */
+    private static long remainder(int[] words, long divisor) {
+        long r = 0;
+        if (divisor <= Integer.MAX_VALUE) {
+            for (int word : words) {
+                r = ((r << 32) | (word & 0xffffffffL)) % divisor;
+            }
+        } else {
+            for (int word : words) {
+                r = ((r << 16) | (word >>> 16)) % divisor;
+                r = ((r << 16) | (word & 0xffff)) % divisor;
+            }
+        }
+        return r;
+    }
+
+    /**
+     * Same search as <code>solveForPandK()</code> over k in [kStart, kEnd), but without
+     * evaluating the discriminant from scratch for each k. With M = ed - 1 and the
+     * coefficients of <code>solveForP()</code>, the discriminant is the quadratic
+     * D(k) = M*M - 2M(n+1)k + (n-1)**2 k*k, so its residues modulo a set of small sieve
+     * moduli are carried from one k to the next by finite differences using only additions
+     * of small integers. D(k) itself is evaluated only for the few k whose residues are all
+     * quadratic residues.
+     *
+     * @param n
+     * @param e
+     * @param d
+     * @param kStart the first k to try, at least 1.
+     * @param kEnd   one past the last k to try.
+     * @return x (==p) if found, null for failure.
+     */
+    public static BigInteger searchK(BigInteger n, BigInteger e, BigInteger d, long kStart, long kEnd) {
+        if (kStart >= kEnd) {
+            return null;
+        }
+        BigInteger m = e.multiply(d).subtract(BigInteger.ONE);
+        BigInteger nPlus1 = n.add(BigInteger.ONE);
+        BigInteger mSquared = m.multiply(m);
+        BigInteger linear = m.multiply(nPlus1).shiftLeft(1);
+        BigInteger nMinus1 = n.subtract(BigInteger.ONE);
+        BigInteger quadratic = nMinus1.multiply(nMinus1);
+
+        // D(k), D(k+1) - D(k) and the constant second difference, modulo each sieve modulus
+        BigInteger k0 = BigInteger.valueOf(kStart);
+        BigInteger dk = discriminant(mSquared, linear, quadratic, k0);
+        BigInteger delta = quadratic.multiply(k0.shiftLeft(1).add(BigInteger.ONE)).subtract(linear);
+        BigInteger second = quadratic.shiftLeft(1);
+        int moduli = SIEVE_MODULI.length;
+        int[] r = new int[moduli];
+        int[] deltaR = new int[moduli];
+        int[] secondR = new int[moduli];
+        for (int i = 0; i < moduli; i++) {
+            BigInteger modulus = BigInteger.valueOf(SIEVE_MODULI[i]);
+            r[i] = dk.mod(modulus).intValue();
+            deltaR[i] = delta.mod(modulus).intValue();
+            secondR[i] = second.mod(modulus).intValue();
+        }
+
+        for (long k = kStart; k < kEnd; k++) {
+            boolean possibleSquare = true;
+            for (int i = 0; i < moduli; i++) {
+                int modulus = SIEVE_MODULI[i];
+                possibleSquare = possibleSquare && isResidue(SIEVE_SQUARES[i], r[i]);
+                r[i] += deltaR[i];
+                if (r[i] >= modulus) {
+                    r[i] -= modulus;
+                }
+                deltaR[i] += secondR[i];
+                if (deltaR[i] >= modulus) {
+                    deltaR[i] -= modulus;
+                }
             }
+            if (possibleSquare) {
+                BigInteger p = solveForPFromDiscriminant(n, m, nPlus1,
+                        discriminant(mSquared, linear, quadratic, BigInteger.valueOf(k)), k);
+                if (p != null) {
+                    return p;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Same as <code>searchK()</code> over every k in ((ed - 1)/n, 2(ed - 1)/n], the range
+     * that contains any k satisfying ed - 1 == k(p-1)(q-1). The range is split into chunks
+     * of <code>chunkSize</code> consecutive k that are searched in parallel on the common
+     * fork-join pool.
+     *
+     * @param n
+     * @param e
+     * @param d
+     * @param chunkSize the number of k values handled by one task.
+     * @return x (==p) if found, null for failure.
+     */
+    public static BigInteger solveForPandKParallel(BigInteger n, BigInteger e, BigInteger d, int chunkSize) {
+        long[] range = kRange(n, e.multiply(d).subtract(BigInteger.ONE));
+        long kStart = range[0];
+        long kEnd = range[1];
+        long chunks = (kEnd - kStart + chunkSize - 1) / chunkSize;
+        return LongStream.range(0, chunks)
+                .parallel()
+                .mapToObj(c -> searchK(n, e, d, kStart + c * chunkSize, Math.min(kEnd, kStart + (c + 1) * chunkSize)))
+                .filter(Objects::nonNull)
+                .findAny()
+                .orElse(null);
+    }
+
+    /**
+     * Since (p-1)(q-1) < n, k is greater than (ed - 1)/n, and since (p-1)(q-1) > n/2 for
+     * distinct odd primes p and q, k is at most 2(ed - 1)/n.
+     *
+     * @return {kStart, kEnd}, the range of k as a half-open interval.
+     * @throws IllegalArgumentException if 2(ed - 1)/n does not fit in a long, rather than
+     *                                  silently searching only part of the range.
+     */
+    private static long[] kRange(BigInteger n, BigInteger edMinus1) {
+        BigInteger max = edMinus1.shiftLeft(1).divide(n);
+        if (max.bitLength() >= 63) {
+            throw new IllegalArgumentException("2(ed - 1)/n has " + max.bitLength()
+                    + " bits, too many to search for k");
+        }
+        long kStart = Math.max(1, edMinus1.divide(n).longValue() + 1);
+        return new long[]{kStart, max.longValue() + 1};
+    }
+
+    private static BigInteger discriminant(BigInteger mSquared, BigInteger linear, BigInteger quadratic,
+                                           BigInteger k) {
+        return quadratic.multiply(k).subtract(linear).multiply(k).add(mSquared);
+    }
+
+    /**
+     * Finish the quadratic formula of <code>solveQuadratic()</code> for a = k,
+     * b = (ed - 1) - k(n+1) once the discriminant is known, and check that the
+     * result really divides n.
+     */
+    private static BigInteger solveForPFromDiscriminant(BigInteger n, BigInteger m, BigInteger nPlus1,
+                                                        BigInteger discriminant, long k) {
+        BigInteger isqrt = perfectSqrt(discriminant);
+        if (isqrt == null) {
+            return null;
+        }
+        BigInteger bigK = BigInteger.valueOf(k);
+        BigInteger b = m.subtract(bigK.multiply(nPlus1));
+        BigInteger[] result = isqrt.subtract(b).divideAndRemainder(bigK.shiftLeft(1));
+        if (result[1].signum() != 0 || result[0].compareTo(BigInteger.ONE) <= 0
+                || n.mod(result[0]).signum() != 0) {
+            return null;
         }
+        return result[0];
     }
 
     public static void main(String[] args) {
@@ -35,25 +35,63 @@ import static com.github.jameskpolk.RSACrtFromDMethod2.perfectSqrt;
 
 public class RSACrtFromDMethod3 {
 
-    private static RSAPrivateCrtKey solveForPrivateKey(BigInteger n, BigInteger e, BigInteger d) throws Exception {
+    /**
+     * Recover p in closed form, assuming d = inv(e) mod phi(n). Then ed - 1 = k*phi(n) with
+     * k just above (ed - 1) / n, which gives phi(n), then p + q, and finally p - q by one
+     * square root.
+     *
+     * @param n the RSA modulus.
+     * @param e the RSA public exponent.
+     * @param d the RSA private exponent.
+     * @return the larger prime factor of n, or null if the closed form does not apply,
+     * for example because d = inv(e) mod lambda(n).
+     */
+    static BigInteger solveForFactor(BigInteger n, BigInteger e, BigInteger d) {
+        BigInteger[] factors = solveForFactors(n, e, d);
+        return (factors != null) ? factors[0] : null;
+    }
+
+    /**
+     * Same as <code>solveForFactor()</code>, but return both primes, since the closed
+     * form yields q as well.
+     *
+     * @return {p, q} with p &gt;= q, or null if the closed form does not apply.
+     */
+    static BigInteger[] solveForFactors(BigInteger n, BigInteger e, BigInteger d) {
         BigInteger edMinus1 = e.multiply(d).subtract(BigInteger.ONE);
         BigInteger k = edMinus1.divide(n).add(BigInteger.ONE);
-        BigInteger phi = edMinus1.divide(k);
+        BigInteger[] phiAndRemainder = edMinus1.divideAndRemainder(k);
+        if (phiAndRemainder[1].signum() != 0) {
+            return null;
+        }
+        BigInteger phi = phiAndRemainder[0];
         BigInteger t1 = n.subtract(phi).add(BigInteger.ONE).shiftRight(1); // (p+q) / 2
-        BigInteger t2 = perfectSqrt(t1.multiply(t1).subtract(n));// (p-q) / 2
+        BigInteger discriminant = t1.multiply(t1).subtract(n);
+        if (discriminant.signum() < 0) {
+            return null;
+        }
+        BigInteger t2 = perfectSqrt(discriminant);// (p-q) / 2
+        if (t2 == null) {
+            return null;
+        }
         BigInteger p = t1.add(t2);
         BigInteger q = t1.subtract(t2);
         // Sanity check
         if (! p.multiply(q).equals(n)) {
+            return null;
+        }
+        return new BigInteger[]{p, q};
+    }
+
+    static RSAPrivateCrtKey solveForPrivateKey(BigInteger n, BigInteger e, BigInteger d) throws Exception {
+        BigInteger p = solveForFactor(n, e, d);
+        if (p == null) {
             throw new Exception("Failure. Perhaps d= inv(e) mod lambda(n)");
         }
 
         // Now compute the other parameters.
 
-        BigInteger dp = d.mod(p.subtract(BigInteger.ONE));
-        BigInteger dq = d.mod(q.subtract(BigInteger.ONE));
-        BigInteger qInvModp = q.modInverse(p);
-        RSAPrivateCrtKeySpec keySpec = new RSAPrivateCrtKeySpec(n, e, d, p, q, dp, dq, qInvModp);
+        RSAPrivateCrtKeySpec keySpec = RSACrtFromD.createCrtKeySpec(n, e, d, p);
         KeyFactory kf = KeyFactory.getInstance("RSA");
         return (RSAPrivateCrtKey) kf.generatePrivate(keySpec);
     }
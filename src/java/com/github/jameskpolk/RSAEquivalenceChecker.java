@@ -0,0 +1,183 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2020. James K Polk
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package com.github.jameskpolk;
+
+import javax.crypto.Cipher;
+import javax.crypto.NoSuchPaddingException;
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.interfaces.RSAPrivateCrtKey;
+import java.security.spec.RSAPublicKeySpec;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.IntStream;
+
+/**
+ * Check whether two RSA CRT private keys are functionally equal, i.e. whether each one
+ * decrypts what was encrypted with the other's public key, using random probe messages.
+ * <p>
+ * In JCE mode the <code>Cipher</code> and <code>KeyFactory</code> instances are created
+ * once per thread and reused, so a comparison costs only <code>Cipher.init()</code> and
+ * the RSA operations themselves. RAW mode skips the JCE altogether and does the same
+ * operations with <code>BigInteger.modPow()</code>, decrypting through the CRT parameters
+ * as the JCE does.
+ * <p>
+ * Instances are thread-safe.
+ */
+public class RSAEquivalenceChecker {
+
+    public enum Mode {JCE, RAW}
+
+    private static final ThreadLocal<KeyFactory> RSA_KEY_FAC = ThreadLocal.withInitial(() -> {
+        try {
+            return KeyFactory.getInstance("RSA");
+        } catch (NoSuchAlgorithmException e) {
+            throw new Error(e);
+        }
+    });
+
+    private static final ThreadLocal<Cipher[]> CIPHERS = ThreadLocal.withInitial(() -> {
+        try {
+            return new Cipher[]{Cipher.getInstance("RSA/ECB/NoPadding"), Cipher.getInstance("RSA/ECB/NoPadding")};
+        } catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
+            throw new Error(e);
+        }
+    });
+
+    private final Mode mode;
+    private final int probes;
+
+    /**
+     * @param mode   how the RSA operations are done.
+     * @param probes the number of random messages tried in each direction.
+     */
+    public RSAEquivalenceChecker(Mode mode, int probes) {
+        if (probes < 1) {
+            throw new IllegalArgumentException("probes must be positive");
+        }
+        this.mode = mode;
+        this.probes = probes;
+    }
+
+    /**
+     * Same as <code>functionallyEqual(k1, k2, random)</code>, with probe messages drawn
+     * from <code>ThreadLocalRandom</code>.
+     */
+    public boolean functionallyEqual(RSAPrivateCrtKey k1, RSAPrivateCrtKey k2) throws GeneralSecurityException {
+        return functionallyEqual(k1, k2, ThreadLocalRandom.current());
+    }
+
+    /**
+     * Encrypt random messages with the public part of each key and decrypt them with the
+     * other key.
+     *
+     * @param k1     the first key.
+     * @param k2     the second key.
+     * @param random the source of the probe messages.
+     * @return true if every probe round-trips in both directions.
+     */
+    public boolean functionallyEqual(RSAPrivateCrtKey k1, RSAPrivateCrtKey k2, Random random)
+            throws GeneralSecurityException {
+        if (!k1.getModulus().equals(k2.getModulus())) {
+            return false;
+        }
+        return (mode == Mode.JCE)
+                ? jceRoundTrips(k1, k2, random) && jceRoundTrips(k2, k1, random)
+                : rawRoundTrips(k1, k2, random) && rawRoundTrips(k2, k1, random);
+    }
+
+    /**
+     * Compare many pairs of keys in parallel.
+     *
+     * @param first  the first key of each pair.
+     * @param second the second key of each pair.
+     * @return for each pair, whether the keys are functionally equal.
+     */
+    public boolean[] functionallyEqual(List<RSAPrivateCrtKey> first, List<RSAPrivateCrtKey> second)
+            throws GeneralSecurityException {
+        if (first.size() != second.size()) {
+            throw new IllegalArgumentException("lists differ in size");
+        }
+        boolean[] result = new boolean[first.size()];
+        GeneralSecurityException[] failure = new GeneralSecurityException[1];
+        IntStream.range(0, result.length).parallel().forEach(i -> {
+            try {
+                result[i] = functionallyEqual(first.get(i), second.get(i));
+            } catch (GeneralSecurityException ex) {
+                synchronized (failure) {
+                    failure[0] = ex;
+                }
+            }
+        });
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+        return result;
+    }
+
+    private boolean jceRoundTrips(RSAPrivateCrtKey encryptingKey, RSAPrivateCrtKey decryptingKey, Random random)
+            throws GeneralSecurityException {
+        Cipher[] ciphers = CIPHERS.get();
+        PublicKey pub = RSA_KEY_FAC.get().generatePublic(
+                new RSAPublicKeySpec(encryptingKey.getModulus(), encryptingKey.getPublicExponent())
+        );
+        ciphers[0].init(Cipher.ENCRYPT_MODE, pub);
+        ciphers[1].init(Cipher.DECRYPT_MODE, decryptingKey);
+        byte[] data = new byte[encryptingKey.getModulus().bitLength() / 8];
+        for (int i = 0; i < probes; i++) {
+            random.nextBytes(data);
+            data[0] = 0;
+            byte[] decrypted = ciphers[1].doFinal(ciphers[0].doFinal(data));
+            if (!Arrays.equals(data, decrypted)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean rawRoundTrips(RSAPrivateCrtKey encryptingKey, RSAPrivateCrtKey decryptingKey, Random random) {
+        BigInteger n = encryptingKey.getModulus();
+        BigInteger p = decryptingKey.getPrimeP();
+        BigInteger q = decryptingKey.getPrimeQ();
+        for (int i = 0; i < probes; i++) {
+            BigInteger m = new BigInteger(n.bitLength() - 1, random);
+            BigInteger c = m.modPow(encryptingKey.getPublicExponent(), n);
+            // Garner's recombination, as the JCE does for CRT keys
+            BigInteger mp = c.modPow(decryptingKey.getPrimeExponentP(), p);
+            BigInteger mq = c.modPow(decryptingKey.getPrimeExponentQ(), q);
+            BigInteger h = mp.subtract(mq).multiply(decryptingKey.getCrtCoefficient()).mod(p);
+            if (!mq.add(h.multiply(q)).equals(m)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
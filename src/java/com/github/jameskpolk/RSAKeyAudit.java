@@ -0,0 +1,295 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2020. James K Polk
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package com.github.jameskpolk;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.KeyFactory;
+import java.security.KeyStore;
+import java.security.NoSuchAlgorithmException;
+import java.security.interfaces.RSAPrivateCrtKey;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+/**
+ * Audit large inventories of RSA private keys for internal consistency. Keys are streamed
+ * from a directory tree or a keystore and checked in parallel with
+ * <code>RSAKeyEquivalents.checkConsistency()</code>, which runs the cheap checks such as
+ * p*q == n first and computes lambda(n) at most once per key.
+ * <p>
+ * The report has one JSON object per line, for example
+ * <pre>{"source":"keys/a.pem","status":"INCONSISTENT","bits":2048,"failedCheck":"p*q == n"}</pre>
+ * where status is one of OK, INCONSISTENT, SKIPPED (not an RSA CRT private key) or ERROR.
+ */
+public class RSAKeyAudit {
+
+    private static final ThreadLocal<KeyFactory> RSA_KEY_FAC = ThreadLocal.withInitial(() -> {
+        try {
+            return KeyFactory.getInstance("RSA");
+        } catch (NoSuchAlgorithmException e) {
+            throw new Error(e);
+        }
+    });
+
+    private static final byte[] PEM_BEGIN = "-----BEGIN".getBytes(StandardCharsets.US_ASCII);
+
+    public enum Status {OK, INCONSISTENT, SKIPPED, ERROR}
+
+    /**
+     * Counts of each status over one audit run.
+     */
+    public static class Summary {
+        private final LongAdder[] counts = new LongAdder[Status.values().length];
+
+        Summary() {
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = new LongAdder();
+            }
+        }
+
+        public long getCount(Status status) {
+            return counts[status.ordinal()].sum();
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder("{");
+            for (Status status : Status.values()) {
+                if (status.ordinal() > 0) {
+                    sb.append(',');
+                }
+                sb.append('"').append(status).append("\":").append(getCount(status));
+            }
+            return sb.append('}').toString();
+        }
+    }
+
+    private final PrintWriter report;
+    private Summary summary;
+
+    /**
+     * @param report receives one JSON line per key; writes are synchronized.
+     */
+    public RSAKeyAudit(Writer report) {
+        this.report = new PrintWriter(report);
+    }
+
+    /**
+     * Audit every regular file under <code>directory</code>. Files may hold a DER encoded
+     * PKCS#8 private key, or any number of PEM encoded PKCS#1 or PKCS#8 private keys; keys
+     * after the first block of a PEM file are reported as <code>file#index</code>.
+     *
+     * @return the counts of each status.
+     */
+    public Summary auditDirectory(Path directory) throws IOException {
+        summary = new Summary();
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.filter(Files::isRegularFile)
+                    .parallel()
+                    .forEach(this::auditFile);
+        } catch (UncheckedIOException ex) {
+            throw ex.getCause();
+        }
+        report.flush();
+        return summary;
+    }
+
+    /**
+     * Audit every private key entry of a keystore whose entries are protected by
+     * <code>password</code>.
+     *
+     * @return the counts of each status.
+     */
+    public Summary auditKeyStore(KeyStore keyStore, char[] password) throws GeneralSecurityException {
+        summary = new Summary();
+        List<String> aliases = Collections.list(keyStore.aliases());
+        aliases.parallelStream().forEach(alias -> {
+            try {
+                if (keyStore.isKeyEntry(alias)) {
+                    audit(alias, keyStore.getKey(alias, password));
+                }
+            } catch (GeneralSecurityException ex) {
+                record(alias, Status.ERROR, 0, ex.toString());
+            }
+        });
+        report.flush();
+        return summary;
+    }
+
+    private void auditFile(Path file) {
+        String source = file.toString();
+        try {
+            if (isPem(file)) {
+                auditPemFile(file);
+                return;
+            }
+            byte[] encoded = Files.readAllBytes(file);
+            audit(source, RSA_KEY_FAC.get().generatePrivate(new PKCS8EncodedKeySpec(encoded)));
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        } catch (GeneralSecurityException | IllegalArgumentException ex) {
+            record(source, Status.ERROR, 0, ex.toString());
+        }
+    }
+
+    private static boolean isPem(Path file) throws IOException {
+        try (InputStream in = Files.newInputStream(file)) {
+            return Arrays.equals(in.readNBytes(PEM_BEGIN.length), PEM_BEGIN);
+        }
+    }
+
+    /**
+     * Audit every key of a PEM file with <code>PemKeyReader</code>, which streams the file
+     * and so handles concatenated PEM of any size.
+     */
+    private void auditPemFile(Path file) throws IOException {
+        String source = file.toString();
+        long keys = 0;
+        try (PemKeyReader reader = new PemKeyReader(FileChannel.open(file, StandardOpenOption.READ))) {
+            PemKeyReader.RsaKeyFields fields;
+            while ((fields = reader.next()) != null) {
+                String keySource = (fields.getIndex() == 0) ? source : source + "#" + fields.getIndex();
+                keys++;
+                if (fields.isMultiPrime()) {
+                    record(keySource, Status.SKIPPED, fields.getModulus().bitLength(), "more than two primes");
+                    continue;
+                }
+                if (fields.getCrtKeySpec() == null) {
+                    record(keySource, Status.SKIPPED, fields.getModulus().bitLength(), "no CRT parameters");
+                    continue;
+                }
+                try {
+                    audit(keySource, RSA_KEY_FAC.get().generatePrivate(fields.getCrtKeySpec()));
+                } catch (GeneralSecurityException ex) {
+                    record(keySource, Status.ERROR, 0, ex.toString());
+                }
+            }
+            if (keys == 0) {
+                record(source, Status.SKIPPED, 0, "no RSA private key");
+            }
+        }
+    }
+
+    /**
+     * Check a single key and report the result under the name <code>source</code>.
+     */
+    public void audit(String source, Key key) {
+        if (!(key instanceof RSAPrivateCrtKey)) {
+            record(source, Status.SKIPPED, 0, "not an RSA CRT private key");
+            return;
+        }
+        RSAPrivateCrtKey crtKey = (RSAPrivateCrtKey) key;
+        int bits = crtKey.getModulus().bitLength();
+        try {
+            String failedCheck = RSAKeyEquivalents.checkConsistency(crtKey);
+            if (failedCheck == null) {
+                record(source, Status.OK, bits, null);
+            } else {
+                record(source, Status.INCONSISTENT, bits, failedCheck);
+            }
+        } catch (ArithmeticException ex) {
+            record(source, Status.INCONSISTENT, bits, ex.toString());
+        }
+    }
+
+    private void record(String source, Status status, int bits, String detail) {
+        if (summary != null) {
+            summary.counts[status.ordinal()].increment();
+        }
+        StringBuilder line = new StringBuilder();
+        line.append("{\"source\":").append(jsonString(source))
+                .append(",\"status\":\"").append(status).append('"');
+        if (bits > 0) {
+            line.append(",\"bits\":").append(bits);
+        }
+        if (detail != null) {
+            line.append(status == Status.INCONSISTENT ? ",\"failedCheck\":" : ",\"detail\":")
+                    .append(jsonString(detail));
+        }
+        line.append('}');
+        synchronized (report) {
+            report.println(line);
+        }
+    }
+
+    private static String jsonString(String s) {
+        StringBuilder sb = new StringBuilder("\"");
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.append('"').toString();
+    }
+
+    /**
+     * Usage: <code>RSAKeyAudit directory</code> or
+     * <code>RSAKeyAudit keystore-file keystore-type password</code>. The report goes to
+     * standard output and the summary to standard error.
+     *
+     * @param args as above.
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+        RSAKeyAudit audit = new RSAKeyAudit(new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
+        Summary summary;
+        if (args.length == 1) {
+            summary = audit.auditDirectory(Paths.get(args[0]));
+        } else if (args.length == 3) {
+            char[] password = args[2].toCharArray();
+            KeyStore keyStore = KeyStore.getInstance(args[1]);
+            try (InputStream in = Files.newInputStream(Paths.get(args[0]))) {
+                keyStore.load(in, password);
+            }
+            summary = audit.auditKeyStore(keyStore, password);
+        } else {
+            System.err.println("usage: RSAKeyAudit directory | keystore-file keystore-type password");
+            return;
+        }
+        System.err.println(summary);
+    }
+}
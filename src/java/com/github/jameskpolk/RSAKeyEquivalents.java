@@ -25,7 +25,6 @@
 
 package com.github.jameskpolk;
 
-import javax.crypto.Cipher;
 import java.math.BigInteger;
 import java.security.*;
 import java.security.interfaces.RSAPrivateCrtKey;
@@ -33,121 +32,98 @@ import java.security.interfaces.RSAPrivateKey;
 import java.security.interfaces.RSAPublicKey;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.RSAPrivateCrtKeySpec;
-import java.security.spec.RSAPublicKeySpec;
-import java.util.Arrays;
-import java.util.Date;
 import java.util.Random;
+import java.util.Set;
 
 public class RSAKeyEquivalents {
-    private final static KeyFactory RSA_KEY_FAC;
-
-    static {
+    private final static ThreadLocal<KeyFactory> RSA_KEY_FAC = ThreadLocal.withInitial(() -> {
         try {
-            RSA_KEY_FAC = KeyFactory.getInstance("RSA");
+            return KeyFactory.getInstance("RSA");
         } catch (NoSuchAlgorithmException e) {
             throw new Error(e);
         }
-    }
+    });
 
-    public static void main(String[] args) throws Exception {
-        doSomeTests();
+    /**
+     * Changes to an RSA CRT private key that should not affect encryption or decryption.
+     */
+    enum Perturbation {
+        /**
+         * Add a random multiple of lambda(n) to d.
+         */
+        D,
+        /**
+         * Add a random multiple of p-1 to dp.
+         */
+        DP,
+        /**
+         * Add a random multiple of q-1 to dq.
+         */
+        DQ,
+        /**
+         * Swap the roles of p and q.
+         */
+        SWAP_PQ
     }
 
-    private static void doSomeTests() throws Exception {
-        KeyPairGenerator kpGen = KeyPairGenerator.getInstance("RSA");
-        long randomSeed = new Date().getTime();
-        System.out.println("Random seed is: " + randomSeed);
-        Random randomForData = new Random(randomSeed + 1);
-        InsecureRandom randomForKeyGen = new InsecureRandom(randomSeed);
-        final int numTrials = 200;
-        final int keysize = 1024;
-        kpGen.initialize(keysize, randomForKeyGen);
-        // Generate some RSA keypairs and perturb them in ways that should not affect encryption
-        // or decryption
-        for (int trial = 0; trial < numTrials; trial++) {
-            KeyPair keyPair = kpGen.generateKeyPair();
-            RSAPrivateCrtKey originalCRTKey = (RSAPrivateCrtKey) keyPair.getPrivate();
-            RSAPrivateCrtKey perturbedCRTKey = perturbCRTKey(originalCRTKey, randomForData);
-            // verify equality
-            if (!rsaPrivateKeyEquals(perturbedCRTKey, originalCRTKey)) {
-                System.out.printf("For randomForKeyGen, seed %d, at trial #%d, private crt keys differ",
-                        randomSeed, trial);
-            }
-            if (!functionallyEqual(perturbedCRTKey, originalCRTKey, randomForData)) {
-                System.out.printf("For functionallyEqual, seed %d, at trial #%d, crt keys are not functionally equal",
-                        randomSeed, trial);
-            }
-        }
+    /**
+     * Run <code>EquivalenceStressHarness</code>, by default with 200 trials of 1024-bit keys.
+     */
+    public static void main(String[] args) throws Exception {
+        EquivalenceStressHarness.main(args);
     }
 
-    private static RSAPrivateCrtKey perturbCRTKey(RSAPrivateCrtKey originalCRTKey, Random random) throws InvalidKeySpecException {
+    static RSAPrivateCrtKey perturbCRTKey(RSAPrivateCrtKey originalCRTKey, Random random,
+                                          Set<Perturbation> perturbations) throws InvalidKeySpecException {
         BigInteger p = originalCRTKey.getPrimeP();
         BigInteger q = originalCRTKey.getPrimeQ();
         BigInteger d = originalCRTKey.getPrivateExponent();
         BigInteger dp = originalCRTKey.getPrimeExponentP();
         BigInteger dq = originalCRTKey.getPrimeExponentQ();
-        BigInteger lambda = computeCarmichaelLambda(p, q);
-        BigInteger newD = d.add(randomMultiple(32, lambda, random));
-        BigInteger newDp = dp.add(randomMultiple(32, p.subtract(BigInteger.ONE), random));
-        BigInteger newDq = dq.add(randomMultiple(32, q.subtract(BigInteger.ONE), random));
-        BigInteger newQInv = p.modInverse(q);
-
-        // use new values and swap p and q
-
-        RSAPrivateCrtKeySpec newKeySpec = new RSAPrivateCrtKeySpec(
-                originalCRTKey.getModulus(),
-                originalCRTKey.getPublicExponent(),
-                newD,
-                q,
-                p,
-                newDq,
-                newDp,
-                newQInv
-        );
+        BigInteger newD = d;
+        if (perturbations.contains(Perturbation.D)) {
+            BigInteger lambda = computeCarmichaelLambda(p, q);
+            newD = d.add(randomMultiple(32, lambda, random));
+        }
+        BigInteger newDp = perturbations.contains(Perturbation.DP)
+                ? dp.add(randomMultiple(32, p.subtract(BigInteger.ONE), random)) : dp;
+        BigInteger newDq = perturbations.contains(Perturbation.DQ)
+                ? dq.add(randomMultiple(32, q.subtract(BigInteger.ONE), random)) : dq;
+
+        RSAPrivateCrtKeySpec newKeySpec;
+        if (perturbations.contains(Perturbation.SWAP_PQ)) {
+            // use new values and swap p and q
+            BigInteger newQInv = p.modInverse(q);
+            newKeySpec = new RSAPrivateCrtKeySpec(
+                    originalCRTKey.getModulus(),
+                    originalCRTKey.getPublicExponent(),
+                    newD,
+                    q,
+                    p,
+                    newDq,
+                    newDp,
+                    newQInv
+            );
+        } else {
+            newKeySpec = new RSAPrivateCrtKeySpec(
+                    originalCRTKey.getModulus(),
+                    originalCRTKey.getPublicExponent(),
+                    newD,
+                    p,
+                    q,
+                    newDp,
+                    newDq,
+                    originalCRTKey.getCrtCoefficient()
+            );
+        }
 
-        return (RSAPrivateCrtKey) RSA_KEY_FAC.generatePrivate(newKeySpec);
+        return (RSAPrivateCrtKey) RSA_KEY_FAC.get().generatePrivate(newKeySpec);
     }
 
     private static BigInteger randomMultiple(int upper, BigInteger x, Random random) {
         return x.multiply(BigInteger.valueOf(random.nextInt(upper)));
     }
 
-    private static boolean functionallyEqual(RSAPrivateCrtKey perturbedCRTKey,
-                                             RSAPrivateCrtKey originalCRTKey,
-                                             Random random) throws Exception {
-
-        // encrypt with original, decrypt with perturbed
-
-        byte[] data = new byte[originalCRTKey.getModulus().bitLength() / 8];
-        random.nextBytes(data);
-        data[0] = 0;
-        Cipher cipher1 = Cipher.getInstance("RSA/ECB/NoPadding");
-        PublicKey pub = RSA_KEY_FAC.generatePublic(
-                new RSAPublicKeySpec(originalCRTKey.getModulus(), originalCRTKey.getPublicExponent())
-        );
-        cipher1.init(Cipher.ENCRYPT_MODE, pub);
-        byte[] encrypted = cipher1.doFinal(data);
-        Cipher cipher2 = Cipher.getInstance("RSA/ECB/NoPadding");
-        cipher2.init(Cipher.DECRYPT_MODE, perturbedCRTKey);
-        byte[] decrypted = cipher2.doFinal(encrypted);
-        if (!Arrays.equals(data, decrypted)) {
-            return false;
-        }
-
-        // encrypt with perturbed, decrypt with original
-
-        cipher1 = Cipher.getInstance("RSA/ECB/NoPadding");
-        pub = RSA_KEY_FAC.generatePublic(
-                new RSAPublicKeySpec(perturbedCRTKey.getModulus(), perturbedCRTKey.getPublicExponent())
-        );
-        cipher1.init(Cipher.ENCRYPT_MODE, pub);
-        encrypted = cipher1.doFinal(data);
-        cipher2 = Cipher.getInstance("RSA/ECB/NoPadding");
-        cipher2.init(Cipher.DECRYPT_MODE, originalCRTKey);
-        decrypted = cipher2.doFinal(encrypted);
-        return Arrays.equals(data, decrypted);
-    }
-
     /**
      * https://stackoverflow.com/questions/43136036/how-to-get-a-rsaprivatecrtkey-from-a-rsaprivatekey
      * answered Mar 31 '17 at 18:16 President James K. Polk
@@ -221,9 +197,15 @@ public class RSAKeyEquivalents {
 
         final BigInteger ZERO = BigInteger.ZERO;
 
-        boolean result = isConsistent(k1) && isConsistent(k2);
-        result = result && k1.getModulus().equals(k2.getModulus());
+        if (!k1.getModulus().equals(k2.getModulus())) {
+            return false;
+        }
+        // lambda depends only on {p, q}, so compute it once when both keys agree on the primes
         BigInteger lambda = computeCarmichaelLambda(k1.getPrimeP(), k1.getPrimeQ());
+        boolean samePrimes = (k1.getPrimeP().equals(k2.getPrimeP()) && k1.getPrimeQ().equals(k2.getPrimeQ()))
+                || (k1.getPrimeP().equals(k2.getPrimeQ()) && k1.getPrimeQ().equals(k2.getPrimeP()));
+        boolean result = checkConsistency(k1, lambda) == null
+                && checkConsistency(k2, samePrimes ? lambda : null) == null;
 
         result = result && k1.getPublicExponent().subtract(k2.getPublicExponent()).mod(lambda).equals(ZERO);
         result = result && k1.getPrivateExponent().subtract(k2.getPrivateExponent()).mod(lambda).equals(ZERO);
@@ -231,7 +213,26 @@ public class RSAKeyEquivalents {
         return result;
     }
 
-    private static boolean isConsistent(RSAPrivateCrtKey key) {
+    public static boolean isConsistent(RSAPrivateCrtKey key) {
+        return checkConsistency(key) == null;
+    }
+
+    /**
+     * Check that the CRT parameters of a key agree with one another. The checks run
+     * cheapest first and stop at the first failure; lambda(n) is only computed for the
+     * last one.
+     *
+     * @param key the key to check.
+     * @return null if the key is consistent, otherwise the name of the first failed check.
+     */
+    public static String checkConsistency(RSAPrivateCrtKey key) {
+        return checkConsistency(key, null);
+    }
+
+    /**
+     * Same as <code>checkConsistency(key)</code>, using a precomputed lambda(n) if it is not null.
+     */
+    static String checkConsistency(RSAPrivateCrtKey key, BigInteger lambda) {
         final BigInteger ZERO = BigInteger.ZERO;
         final BigInteger ONE = BigInteger.ONE;
 
@@ -241,13 +242,25 @@ public class RSAKeyEquivalents {
         BigInteger e = key.getPublicExponent();
         BigInteger d = key.getPrivateExponent();
 
-        boolean result = p.multiply(q).equals(n);
-        BigInteger lambda = computeCarmichaelLambda(p, q);
-        result = result && e.multiply(d).mod(lambda).equals(ONE);
-        result = result && d.subtract(key.getPrimeExponentP()).mod(p.subtract(ONE)).equals(ZERO);
-        result = result && d.subtract(key.getPrimeExponentQ()).mod(q.subtract(ONE)).equals(ZERO);
-        result = result && q.multiply(key.getCrtCoefficient()).mod(p).equals(ONE);
-        return result;
+        if (!p.multiply(q).equals(n)) {
+            return "p*q == n";
+        }
+        if (!q.multiply(key.getCrtCoefficient()).mod(p).equals(ONE)) {
+            return "q*qInv == 1 mod p";
+        }
+        if (!d.subtract(key.getPrimeExponentP()).mod(p.subtract(ONE)).equals(ZERO)) {
+            return "dp == d mod (p-1)";
+        }
+        if (!d.subtract(key.getPrimeExponentQ()).mod(q.subtract(ONE)).equals(ZERO)) {
+            return "dq == d mod (q-1)";
+        }
+        if (lambda == null) {
+            lambda = computeCarmichaelLambda(p, q);
+        }
+        if (!e.multiply(d).mod(lambda).equals(ONE)) {
+            return "e*d == 1 mod lambda(n)";
+        }
+        return null;
     }
 
     private static BigInteger computeCarmichaelLambda(BigInteger p, BigInteger q) {
@@ -0,0 +1,278 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2020. James K Polk
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package com.github.jameskpolk;
+
+import java.math.BigInteger;
+import java.security.KeyFactory;
+import java.security.NoSuchAlgorithmException;
+import java.security.interfaces.RSAPrivateCrtKey;
+import java.security.interfaces.RSAPrivateKey;
+import java.security.interfaces.RSAPublicKey;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.RSAPrivateCrtKeySpec;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded cache of recovered factorizations, so that recovering the CRT key of the
+ * same modulus again costs a few divisions instead of a factoring.
+ * <p>
+ * Entries are keyed by a 64-bit fingerprint of n and hold only the magnitude bytes of its
+ * larger prime p and of the CRT coefficient 1/q mod p, which is as costly as the rest of
+ * the key put together to recompute; that is under a quarter of the size of a full CRT
+ * key. A hit is trusted only if the stored prime really divides n, so fingerprint
+ * collisions cost a miss and never a wrong key.
+ * Since the factorization does not depend on e or d, one entry serves every (e, d) pair
+ * of a modulus. Misses go through <code>AdaptiveCrtRecovery</code>.
+ * <p>
+ * The cache is split into independently locked segments by fingerprint, each evicting its
+ * least recently used entry when full. Instances are thread-safe; concurrent misses on the
+ * same modulus may each do the recovery.
+ */
+public class RecoveryCache {
+
+    private static final int SEGMENTS = 16;
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final AdaptiveCrtRecovery recovery;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    private static final class Segment extends LinkedHashMap<Long, byte[]> {
+        private static final long serialVersionUID = 1L;
+
+        private final int capacity;
+        private final LongAdder evictions;
+
+        Segment(int capacity, LongAdder evictions) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+            this.evictions = evictions;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, byte[]> eldest) {
+            if (size() > capacity) {
+                evictions.increment();
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * @param maxEntries the most moduli to remember.
+     */
+    public RecoveryCache(int maxEntries) {
+        this(maxEntries, new AdaptiveCrtRecovery());
+    }
+
+    /**
+     * @param maxEntries the most moduli to remember.
+     * @param recovery   recovers the keys that are not in the cache.
+     */
+    public RecoveryCache(int maxEntries, AdaptiveCrtRecovery recovery) {
+        if (maxEntries < SEGMENTS) {
+            throw new IllegalArgumentException("maxEntries must be at least " + SEGMENTS);
+        }
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(maxEntries / SEGMENTS, evictions);
+        }
+        this.recovery = recovery;
+    }
+
+    /**
+     * @return a 64-bit hash of the magnitude of n.
+     */
+    static long fingerprint(BigInteger n) {
+        byte[] bytes = n.toByteArray();
+        long h = bytes.length;
+        long chunk = 0;
+        for (int i = 0; i < bytes.length; i++) {
+            chunk = (chunk << 8) | (bytes[i] & 0xff);
+            if ((i & 7) == 7 || i == bytes.length - 1) {
+                h = InsecureRandomSpi.mix64(h ^ chunk) + InsecureRandomSpi.GOLDEN_GAMMA;
+                chunk = 0;
+            }
+        }
+        return h;
+    }
+
+    private Segment segment(long fingerprint) {
+        return segments[(int) (fingerprint >>> 60) & (SEGMENTS - 1)];
+    }
+
+    /**
+     * Pack p and qInv as a two-byte length of p followed by the magnitudes of p and qInv.
+     */
+    private static byte[] pack(BigInteger p, BigInteger qInv) {
+        int pLength = (p.bitLength() + 7) / 8;
+        int qInvLength = (qInv.bitLength() + 7) / 8;
+        byte[] packed = new byte[2 + pLength + qInvLength];
+        packed[0] = (byte) (pLength >>> 8);
+        packed[1] = (byte) pLength;
+        putMagnitude(p, packed, 2, pLength);
+        putMagnitude(qInv, packed, 2 + pLength, qInvLength);
+        return packed;
+    }
+
+    private static void putMagnitude(BigInteger x, byte[] out, int offset, int length) {
+        byte[] bytes = x.toByteArray();
+        System.arraycopy(bytes, bytes.length - length, out, offset, length);
+    }
+
+    /**
+     * @return the cached {p, q, qInv} of n, or null if n is not cached.
+     */
+    private BigInteger[] lookup(BigInteger n, long fingerprint) {
+        Segment segment = segment(fingerprint);
+        byte[] packed;
+        synchronized (segment) {
+            packed = segment.get(fingerprint);
+        }
+        if (packed == null) {
+            return null;
+        }
+        int pLength = ((packed[0] & 0xff) << 8) | (packed[1] & 0xff);
+        BigInteger p = new BigInteger(1, packed, 2, pLength);
+        if (p.compareTo(BigInteger.ONE) <= 0 || p.compareTo(n) >= 0) {
+            return null;
+        }
+        BigInteger[] qAndRemainder = n.divideAndRemainder(p);
+        if (qAndRemainder[1].signum() != 0) {
+            return null;
+        }
+        return new BigInteger[]{p, qAndRemainder[0], new BigInteger(1, packed, 2 + pLength, packed.length - 2 - pLength)};
+    }
+
+    /**
+     * Recover all the CRT parameters from e, d, and n, from the cache if n has been seen.
+     *
+     * @param n the RSA modulus.
+     * @param e the RSA public exponent.
+     * @param d the RSA private exponent.
+     * @return an RSAPrivateCrtKeySpec containing all the CRT parameters.
+     * @throws IllegalArgumentException if ed - 1 is not a multiple of lambda(n), or n could
+     *                                  not be split.
+     */
+    public RSAPrivateCrtKeySpec createCrtKeySpec(BigInteger n, BigInteger e, BigInteger d) {
+        long fingerprint = fingerprint(n);
+        BigInteger[] cached = lookup(n, fingerprint);
+        if (cached != null) {
+            hits.increment();
+            BigInteger p = cached[0];
+            BigInteger q = cached[1];
+            BigInteger pMinus1 = p.subtract(BigInteger.ONE);
+            BigInteger qMinus1 = q.subtract(BigInteger.ONE);
+            BigInteger dp = d.mod(pMinus1);
+            BigInteger dq = d.mod(qMinus1);
+            // the same check a miss makes, so the outcome never depends on the cache
+            if (!e.multiply(dp).mod(pMinus1).equals(BigInteger.ONE)
+                    || !e.multiply(dq).mod(qMinus1).equals(BigInteger.ONE)) {
+                throw new IllegalArgumentException("ed - 1 is not a multiple of lambda(n)");
+            }
+            return new RSAPrivateCrtKeySpec(n, e, d, p, q, dp, dq, cached[2]);
+        }
+        misses.increment();
+        RSAPrivateCrtKeySpec keySpec = recovery.recover(n, e, d).getKeySpec();
+        byte[] packed = pack(keySpec.getPrimeP(), keySpec.getCrtCoefficient());
+        Segment segment = segment(fingerprint);
+        synchronized (segment) {
+            segment.put(fingerprint, packed);
+        }
+        return keySpec;
+    }
+
+    /**
+     * Same as <code>RSACrtFromD.createCrtKey()</code>, but through the cache.
+     *
+     * @param rsaPub  RSA public key, includes public exponent e and modulus n.
+     * @param rsaPriv RSA private key, includes private exponent d and modulus n.
+     * @return an RSAPrivateCrtKey containing all the CRT parameters.
+     */
+    public RSAPrivateCrtKey createCrtKey(RSAPublicKey rsaPub, RSAPrivateKey rsaPriv) throws
+            NoSuchAlgorithmException, InvalidKeySpecException {
+        RSAPrivateCrtKeySpec keySpec = createCrtKeySpec(rsaPub.getModulus(), rsaPub.getPublicExponent(),
+                rsaPriv.getPrivateExponent());
+        KeyFactory kf = KeyFactory.getInstance("RSA");
+        return (RSAPrivateCrtKey) kf.generatePrivate(keySpec);
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    /**
+     * @return the number of moduli currently cached.
+     */
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d entries, %d hits, %d misses, %d evictions", size(), getHitCount(),
+                getMissCount(), getEvictionCount());
+    }
+
+    /**
+     * Recover a few keys twice and print the time of each pass.
+     *
+     * @param args these are ignored.
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+        RecoveryCache cache = new RecoveryCache(1024);
+        List<RSAPrivateCrtKey> keys = new TestKeyCorpus().keys(1, 1024, TestKeyCorpus.F4, 256);
+        for (int pass = 0; pass < 3; pass++) {
+            long start = System.nanoTime();
+            for (RSAPrivateCrtKey key : keys) {
+                RSAPrivateCrtKeySpec keySpec = cache.createCrtKeySpec(key.getModulus(), key.getPublicExponent(),
+                        key.getPrivateExponent());
+                assert keySpec.getPrimeP().equals(key.getPrimeP())
+                        && keySpec.getCrtCoefficient().equals(key.getCrtCoefficient());
+            }
+            System.out.printf("pass %d: %.1f us/key, %s%n", pass, (System.nanoTime() - start) / 1e3 / keys.size(), cache);
+        }
+    }
+}
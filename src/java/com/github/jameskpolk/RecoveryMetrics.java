@@ -0,0 +1,216 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2020. James K Polk
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package com.github.jameskpolk;
+
+import jdk.jfr.EventType;
+
+import java.math.BigInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms for the internals of <code>RSACrtFromD.findFactor()</code>,
+ * <code>RSACrtFromD.findFactorSlow()</code> and <code>RSACrtFromDMethod2.solveForPandK()</code>,
+ * bucketed by modulus size, plus a <code>FactorRecoveryEvent</code> per call while a flight
+ * recording is running.
+ * <p>
+ * The counters are off unless the system property <code>com.github.jameskpolk.metrics</code>
+ * is true or <code>setEnabled(true)</code> is called. When they are off and no recording is
+ * running, an instrumented call costs one null check per loop iteration.
+ */
+public class RecoveryMetrics {
+
+    public enum Operation {FIND_FACTOR, FIND_FACTOR_SLOW, SOLVE_FOR_P_AND_K}
+
+    public enum Counter {
+        CALLS,
+        /**
+         * Witnesses a tried by the HAC method.
+         */
+        BASES,
+        SQUARINGS,
+        /**
+         * Values of k tested for dividing ed - 1.
+         */
+        K_SCANNED,
+        /**
+         * Values of k for which the quadratic was solved.
+         */
+        K_CANDIDATES,
+        MODPOW_NANOS,
+        GCD_NANOS
+    }
+
+    /**
+     * The upper bound, in bits, of each key-size bucket.
+     */
+    private static final int[] BUCKET_BITS = {1024, 2048, 3072, 4096, 8192, Integer.MAX_VALUE};
+
+    private static final EventType EVENT_TYPE = EventType.getEventType(FactorRecoveryEvent.class);
+    private static final LongAdder[][][] COUNTERS =
+            new LongAdder[Operation.values().length][BUCKET_BITS.length][Counter.values().length];
+    private static final LatencyHistogram[][] LATENCIES =
+            new LatencyHistogram[Operation.values().length][BUCKET_BITS.length];
+    private static volatile boolean enabled = Boolean.getBoolean("com.github.jameskpolk.metrics");
+
+    static {
+        for (int op = 0; op < COUNTERS.length; op++) {
+            for (int bucket = 0; bucket < BUCKET_BITS.length; bucket++) {
+                for (int c = 0; c < Counter.values().length; c++) {
+                    COUNTERS[op][bucket][c] = new LongAdder();
+                }
+                LATENCIES[op][bucket] = new LatencyHistogram();
+            }
+        }
+    }
+
+    private RecoveryMetrics() {
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    public static void setEnabled(boolean enabled) {
+        RecoveryMetrics.enabled = enabled;
+    }
+
+    /**
+     * @return the index of the smallest bucket holding moduli of <code>bits</code> bits.
+     */
+    public static int bucket(int bits) {
+        int bucket = 0;
+        while (bits > BUCKET_BITS[bucket]) {
+            bucket++;
+        }
+        return bucket;
+    }
+
+    public static long get(Operation operation, int bucket, Counter counter) {
+        return COUNTERS[operation.ordinal()][bucket][counter.ordinal()].sum();
+    }
+
+    /**
+     * @return the latencies in nanoseconds of calls of <code>operation</code> in <code>bucket</code>.
+     */
+    public static LatencyHistogram getLatencies(Operation operation, int bucket) {
+        return LATENCIES[operation.ordinal()][bucket];
+    }
+
+    /**
+     * @return one line per operation and bucket that has any calls, with the mean of
+     * each nonzero counter per call.
+     */
+    public static String report() {
+        StringBuilder sb = new StringBuilder();
+        for (Operation operation : Operation.values()) {
+            for (int bucket = 0; bucket < BUCKET_BITS.length; bucket++) {
+                long calls = get(operation, bucket, Counter.CALLS);
+                if (calls == 0) {
+                    continue;
+                }
+                String bits = (BUCKET_BITS[bucket] == Integer.MAX_VALUE) ? ">" + BUCKET_BITS[bucket - 1]
+                        : "<=" + BUCKET_BITS[bucket];
+                sb.append(String.format("%s %s bits: %d calls", operation, bits, calls));
+                for (Counter counter : Counter.values()) {
+                    long total = get(operation, bucket, counter);
+                    if (counter != Counter.CALLS && total != 0) {
+                        sb.append(String.format(", %s/call %.1f", counter.name().toLowerCase(), (double) total / calls));
+                    }
+                }
+                LatencyHistogram latencies = getLatencies(operation, bucket);
+                sb.append(String.format(", p50 %.3f ms, p99 %.3f ms, max %.3f ms%n",
+                        latencies.getPercentile(50) / 1e6, latencies.getPercentile(99) / 1e6,
+                        latencies.getMax() / 1e6));
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Start tracing one call.
+     *
+     * @return a trace to update and finish, or null if neither the counters nor the flight
+     * recorder event are enabled.
+     */
+    static Trace start(Operation operation, BigInteger n) {
+        boolean record = enabled;
+        boolean event = EVENT_TYPE.isEnabled();
+        return (record || event) ? new Trace(operation, n.bitLength(), record, event) : null;
+    }
+
+    /**
+     * The counts of a single call, accumulated in plain fields by the calling thread.
+     */
+    static final class Trace {
+        private final Operation operation;
+        private final int bits;
+        private final boolean record;
+        private final FactorRecoveryEvent event;
+        private final long start = System.nanoTime();
+        long bases;
+        long squarings;
+        long kScanned;
+        long kCandidates;
+        long modPowNanos;
+        long gcdNanos;
+
+        private Trace(Operation operation, int bits, boolean record, boolean event) {
+            this.operation = operation;
+            this.bits = bits;
+            this.record = record;
+            this.event = event ? new FactorRecoveryEvent() : null;
+            if (this.event != null) {
+                this.event.begin();
+            }
+        }
+
+        void finish(boolean found) {
+            if (record) {
+                LongAdder[] counters = COUNTERS[operation.ordinal()][bucket(bits)];
+                counters[Counter.CALLS.ordinal()].increment();
+                counters[Counter.BASES.ordinal()].add(bases);
+                counters[Counter.SQUARINGS.ordinal()].add(squarings);
+                counters[Counter.K_SCANNED.ordinal()].add(kScanned);
+                counters[Counter.K_CANDIDATES.ordinal()].add(kCandidates);
+                counters[Counter.MODPOW_NANOS.ordinal()].add(modPowNanos);
+                counters[Counter.GCD_NANOS.ordinal()].add(gcdNanos);
+                LATENCIES[operation.ordinal()][bucket(bits)].record(System.nanoTime() - start);
+            }
+            if (event != null && event.shouldCommit()) {
+                event.operation = operation.name();
+                event.modulusBits = bits;
+                event.bases = bases;
+                event.squarings = squarings;
+                event.kScanned = kScanned;
+                event.kCandidates = kCandidates;
+                event.modPowNanos = modPowNanos;
+                event.gcdNanos = gcdNanos;
+                event.found = found;
+                event.commit();
+            }
+        }
+    }
+}
@@ -26,55 +26,259 @@
 package com.github.jameskpolk;
 
 
+import java.math.BigInteger;
 import java.security.InvalidKeyException;
+import java.security.KeyFactory;
+import java.security.NoSuchAlgorithmException;
 import java.security.interfaces.RSAPrivateCrtKey;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Optional;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.RSAPrivateCrtKeySpec;
 
 /**
  * Build a full RSAPrivateCrtKey from partial information, if possible.
  * Only works for RSA moduli that are the product of two distinct odd
  * primes.
+ * <p>
+ * Any subset of the eight CRT parameters may be supplied. The builder takes the
+ * cheapest route to the missing ones: a multiplication or division when a prime
+ * is known, and factoring n from (n, e, d), (n, e, dp), (n, e, dq), or directly
+ * when n fits in a long, only when neither prime is.
+ * Supplied values are checked against the derived ones.
  */
 public class RsaPrivateCrtBuilder {
 
-    private Optional<List<Long>> smallFactor(long n) {
-        List<Long> factors = new ArrayList<>();
-        int count = 0;
-        if ((n % 2 == 0) || (n == 3)) {
+    /**
+     * Bases tried by the HAC method before concluding that n is not a product of two
+     * distinct odd primes; a valid key fails all of them with probability 2**-64.
+     */
+    private static final int MAX_BASES = 64;
+
+    private BigInteger n;
+    private BigInteger e;
+    private BigInteger d;
+    private BigInteger p;
+    private BigInteger q;
+    private BigInteger dp;
+    private BigInteger dq;
+    private BigInteger qInv;
+
+    public RsaPrivateCrtBuilder setModulus(BigInteger n) {
+        this.n = n;
+        return this;
+    }
+
+    public RsaPrivateCrtBuilder setPublicExponent(BigInteger e) {
+        this.e = e;
+        return this;
+    }
+
+    public RsaPrivateCrtBuilder setPrivateExponent(BigInteger d) {
+        this.d = d;
+        return this;
+    }
+
+    public RsaPrivateCrtBuilder setPrimeP(BigInteger p) {
+        this.p = p;
+        return this;
+    }
+
+    public RsaPrivateCrtBuilder setPrimeQ(BigInteger q) {
+        this.q = q;
+        return this;
+    }
+
+    public RsaPrivateCrtBuilder setPrimeExponentP(BigInteger dp) {
+        this.dp = dp;
+        return this;
+    }
+
+    public RsaPrivateCrtBuilder setPrimeExponentQ(BigInteger dq) {
+        this.dq = dq;
+        return this;
+    }
+
+    public RsaPrivateCrtBuilder setCrtCoefficient(BigInteger qInv) {
+        this.qInv = qInv;
+        return this;
+    }
+
+    /**
+     * Factor a modulus small enough to fit in a long.
+     *
+     * @param n the modulus.
+     * @return {p, q} with p &gt; q if n is the product of two distinct odd primes, null otherwise.
+     */
+    static long[] smallFactor(long n) {
+        long[] factors = new long[LongFactorizer.MAX_FACTORS];
+        int count = LongFactorizer.factor(n, factors);
+        if (count != 2 || factors[0] == 2 || factors[0] == factors[1]) {
             return null;
         }
+        return new long[]{factors[1], factors[0]};
+    }
 
-        int stop = (int) ((Math.sqrt(n) + 1) / 6.0);
-
-        for (int t = 1; t < stop && factors.size() < 2; t++) {
-            for (int plusMinus = 0; plusMinus <= 1; plusMinus++) {
-                long p = 6 * t + (1 - 2 * plusMinus);
-                if ((n % p) == 0) {
-                    factors.add(p);
-                    n /= p;
-                    if ((n % p) == 0) {
-                        return Optional.empty();
-                    }
-                    stop = (int) ((Math.sqrt(n) + 1) / 6.0);
-                }
+    /**
+     * Factor n when neither prime was supplied, trying the cheapest applicable method first:
+     * the closed form of <code>RSACrtFromDMethod3</code>, then one exponentiation with a CRT
+     * exponent, then the HAC method, and finally direct factoring of a small n.
+     *
+     * @return {p, q}
+     */
+    private BigInteger[] factorModulus(BigInteger n) throws InvalidKeyException {
+        if (e != null && d != null) {
+            BigInteger[] factors = RSACrtFromDMethod3.solveForFactors(n, e, d);
+            if (factors != null) {
+                return factors;
             }
         }
-        if (n > 1) {
-            factors.add(n);
-            n = 1;
+        try {
+            if (e != null && dp != null) {
+                BigInteger p = RSACrtFromD.findFactorFromCrtExponent(e, dp, n);
+                return new BigInteger[]{p, n.divide(p)};
+            }
+            if (e != null && dq != null) {
+                BigInteger q = RSACrtFromD.findFactorFromCrtExponent(e, dq, n);
+                return new BigInteger[]{n.divide(q), q};
+            }
+        } catch (IllegalArgumentException ex) {
+            throw new InvalidKeyException(ex.getMessage(), ex);
         }
-        if (factors.size() == 2) {
-            return Optional.empty();
-        } else {
-            return Optional.of(factors);
+        if (e != null && d != null) {
+            BigInteger p;
+            try {
+                p = RSACrtFromD.findFactor(e, d, n, MAX_BASES);
+            } catch (IllegalArgumentException ex) {
+                throw new InvalidKeyException("e*d != 1 mod lambda(n)", ex);
+            }
+            if (p == null) {
+                throw new InvalidKeyException("n is not the product of two distinct odd primes");
+            }
+            return new BigInteger[]{p, n.divide(p)};
+        }
+        if (n.signum() > 0 && n.bitLength() < 64) {
+            long[] factors = smallFactor(n.longValue());
+            if (factors == null) {
+                throw new InvalidKeyException("n is not the product of two distinct odd primes");
+            }
+            return new BigInteger[]{BigInteger.valueOf(factors[0]), BigInteger.valueOf(factors[1])};
         }
+        throw new InvalidKeyException("cannot factor n from the supplied parameters");
     }
 
-    public RSAPrivateCrtKey build() throws InvalidKeyException {
+    /**
+     * Factoring finds the primes in no particular order, but a supplied qInv, dp, or dq
+     * belongs to one of them.
+     *
+     * @return false if the supplied CRT values only fit with p and q exchanged.
+     */
+    private boolean matchesSuppliedOrder(BigInteger p, BigInteger q, BigInteger d) {
+        if (qInv != null) {
+            return qInv.multiply(q).mod(p).equals(BigInteger.ONE);
+        }
+        if (d != null && dp != null) {
+            BigInteger pMinus1 = p.subtract(BigInteger.ONE);
+            return dp.mod(pMinus1).equals(d.mod(pMinus1));
+        }
+        if (d != null && dq != null) {
+            BigInteger qMinus1 = q.subtract(BigInteger.ONE);
+            return dq.mod(qMinus1).equals(d.mod(qMinus1));
+        }
+        return true;
+    }
+
+    /**
+     * Compute all eight CRT parameters from the ones supplied.
+     *
+     * @return the complete key spec.
+     * @throws InvalidKeyException if the supplied parameters are insufficient or inconsistent.
+     */
+    public RSAPrivateCrtKeySpec buildKeySpec() throws InvalidKeyException {
+        final BigInteger ONE = BigInteger.ONE;
+
+        BigInteger n = this.n;
+        BigInteger p = this.p;
+        BigInteger q = this.q;
+        BigInteger d = this.d;
+
+        // First the factorization, which is the only expensive part.
+
+        if (p != null && q != null) {
+            if (n == null) {
+                n = p.multiply(q);
+            } else if (!p.multiply(q).equals(n)) {
+                throw new InvalidKeyException("p*q != n");
+            }
+        } else if (n == null) {
+            throw new InvalidKeyException("need n, or both p and q");
+        } else if (p != null || q != null) {
+            BigInteger known = (p != null) ? p : q;
+            BigInteger[] quotientAndRemainder = n.divideAndRemainder(known);
+            if (quotientAndRemainder[1].signum() != 0) {
+                throw new InvalidKeyException("prime does not divide n");
+            }
+            if (p == null) {
+                p = quotientAndRemainder[0];
+            } else {
+                q = quotientAndRemainder[0];
+            }
+        } else {
+            BigInteger[] factors = factorModulus(n);
+            boolean swap = !matchesSuppliedOrder(factors[0], factors[1], d);
+            p = factors[swap ? 1 : 0];
+            q = factors[swap ? 0 : 1];
+        }
 
+        // Everything else is cheap once p and q are known.
 
-        return null;
+        BigInteger pMinus1 = p.subtract(ONE);
+        BigInteger qMinus1 = q.subtract(ONE);
+        BigInteger lambda = pMinus1.multiply(qMinus1).divide(pMinus1.gcd(qMinus1));
+        BigInteger e = this.e;
+        try {
+            if (e == null) {
+                if (d == null) {
+                    throw new InvalidKeyException("need e or d");
+                }
+                e = d.modInverse(lambda);
+            } else if (d == null) {
+                d = e.modInverse(lambda);
+            } else if (!e.multiply(d).mod(lambda).equals(ONE)) {
+                throw new InvalidKeyException("e*d != 1 mod lambda(n)");
+            }
+        } catch (ArithmeticException ex) {
+            throw new InvalidKeyException("exponent not invertible mod lambda(n)", ex);
+        }
+        // Supplied values are kept and only checked, which is cheaper than deriving them.
+        BigInteger dp = d.mod(pMinus1);
+        BigInteger dq = d.mod(qMinus1);
+        if (this.dp != null) {
+            if (!this.dp.mod(pMinus1).equals(dp)) {
+                throw new InvalidKeyException("dp != d mod (p-1)");
+            }
+            dp = this.dp;
+        }
+        if (this.dq != null) {
+            if (!this.dq.mod(qMinus1).equals(dq)) {
+                throw new InvalidKeyException("dq != d mod (q-1)");
+            }
+            dq = this.dq;
+        }
+        BigInteger qInv = this.qInv;
+        if (qInv == null) {
+            qInv = q.modInverse(p);
+        } else if (qInv.signum() <= 0 || qInv.compareTo(p) >= 0 || !qInv.multiply(q).mod(p).equals(ONE)) {
+            throw new InvalidKeyException("qInv != inv(q) mod p");
+        }
+        return new RSAPrivateCrtKeySpec(n, e, d, p, q, dp, dq, qInv);
+    }
+
+    public RSAPrivateCrtKey build() throws InvalidKeyException {
+        RSAPrivateCrtKeySpec keySpec = buildKeySpec();
+        try {
+            KeyFactory kf = KeyFactory.getInstance("RSA");
+            return (RSAPrivateCrtKey) kf.generatePrivate(keySpec);
+        } catch (NoSuchAlgorithmException | InvalidKeySpecException ex) {
+            throw new InvalidKeyException(ex);
+        }
     }
 }
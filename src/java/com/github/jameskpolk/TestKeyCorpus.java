@@ -0,0 +1,228 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2020. James K Polk
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package com.github.jameskpolk;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.NoSuchAlgorithmException;
+import java.security.interfaces.RSAPrivateCrtKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Reproducible RSA test keys. Key number i of a corpus depends only on (seed, keySize, e, i):
+ * its primes are drawn from <code>InsecureRandom(seed).stream(i)</code>, so keys are generated
+ * in parallel and any prefix of a corpus is the same no matter how large the corpus.
+ * <p>
+ * Primes are found by sieving a window of odd candidates against the small primes and
+ * running a probable-prime test only on the survivors, which is several times faster than
+ * testing candidates one by one.
+ * <p>
+ * Generated corpora are cached on disk, by default under <code>${java.io.tmpdir}/rsa-test-corpus</code>,
+ * in the binary <code>KeyCorpusFile</code> format and keyed by (seed, keySize, e, count), so
+ * repeated benchmark runs skip generation entirely.
+ * These keys are for testing only.
+ */
+public class TestKeyCorpus {
+
+    public static final BigInteger F4 = BigInteger.valueOf(65537);
+
+    private static final int SIEVE_LIMIT = 1 << 16;
+    private static final int[] SIEVE_PRIMES = sievePrimes(SIEVE_LIMIT);
+    private static final int PRIME_CERTAINTY = 100;
+
+    private final static ThreadLocal<KeyFactory> RSA_KEY_FAC = ThreadLocal.withInitial(() -> {
+        try {
+            return KeyFactory.getInstance("RSA");
+        } catch (NoSuchAlgorithmException e) {
+            throw new Error(e);
+        }
+    });
+
+    private final Path cacheDirectory;
+
+    public TestKeyCorpus() {
+        this(Paths.get(System.getProperty("java.io.tmpdir"), "rsa-test-corpus"));
+    }
+
+    /**
+     * @param cacheDirectory where corpora are cached, or null to disable the cache.
+     */
+    public TestKeyCorpus(Path cacheDirectory) {
+        this.cacheDirectory = cacheDirectory;
+    }
+
+    private static int[] sievePrimes(int limit) {
+        boolean[] composite = new boolean[limit];
+        int count = 0;
+        for (int i = 3; i < limit; i += 2) {
+            if (!composite[i]) {
+                count++;
+                for (long j = (long) i * i; j < limit; j += 2 * i) {
+                    composite[(int) j] = true;
+                }
+            }
+        }
+        int[] primes = new int[count];
+        for (int i = 3, k = 0; i < limit; i += 2) {
+            if (!composite[i]) {
+                primes[k++] = i;
+            }
+        }
+        return primes;
+    }
+
+    /**
+     * Return the first <code>count</code> keys of the corpus for (seed, keySize, e), from the
+     * cache if possible, otherwise by generating and caching them.
+     */
+    public List<RSAPrivateCrtKey> keys(long seed, int keySize, BigInteger e, int count) throws IOException {
+        Path cacheFile = (cacheDirectory == null) ? null
+                : cacheDirectory.resolve(String.format("rsa-%d-%s-%d-%d.rsak", keySize, e, seed, count));
+        if (cacheFile != null && Files.isRegularFile(cacheFile)) {
+            return read(cacheFile);
+        }
+        List<RSAPrivateCrtKey> keys = IntStream.range(0, count)
+                .parallel()
+                .mapToObj(i -> generate(seed, keySize, e, i))
+                .collect(Collectors.toList());
+        if (cacheFile != null) {
+            write(cacheFile, keys);
+        }
+        return keys;
+    }
+
+    /**
+     * Generate key number <code>index</code> of the corpus for (seed, keySize, e).
+     */
+    public static RSAPrivateCrtKey generate(long seed, int keySize, BigInteger e, long index) {
+        Random random = new InsecureRandom(seed).stream(index);
+        int pBits = (keySize + 1) / 2;
+        BigInteger p = generatePrime(pBits, e, random);
+        BigInteger q;
+        do {
+            q = generatePrime(keySize - pBits, e, random);
+        } while (q.equals(p));
+        return toKey(p, q, e);
+    }
+
+    /**
+     * Find a random prime of exactly <code>bits</code> bits with its top two bits set, so that
+     * the product of two such primes has exactly the sum of their lengths, and with
+     * gcd(e, p-1) = 1.
+     */
+    public static BigInteger generatePrime(int bits, BigInteger e, Random random) {
+        if (bits < 18) {
+            throw new IllegalArgumentException("bits must be at least 18");
+        }
+        // Prime gaps average ln(2**bits), so this window almost always holds several primes
+        int window = 16 * bits;
+        boolean[] composite = new boolean[window];
+        while (true) {
+            BigInteger start = new BigInteger(bits, random).setBit(bits - 1).setBit(bits - 2).setBit(0);
+            Arrays.fill(composite, false);
+            for (int prime : SIEVE_PRIMES) {
+                // mark i with start + 2i == 0 mod prime, i.e. i == -start / 2 mod prime
+                long r = start.mod(BigInteger.valueOf(prime)).longValue();
+                long first = ((prime - r) * ((prime + 1) / 2)) % prime;
+                for (long i = first; i < window; i += prime) {
+                    composite[(int) i] = true;
+                }
+            }
+            for (int i = 0; i < window; i++) {
+                if (composite[i]) {
+                    continue;
+                }
+                BigInteger candidate = start.add(BigInteger.valueOf(2L * i));
+                if (candidate.bitLength() != bits) {
+                    break;
+                }
+                if (e.gcd(candidate.subtract(BigInteger.ONE)).equals(BigInteger.ONE)
+                        && candidate.isProbablePrime(PRIME_CERTAINTY)) {
+                    return candidate;
+                }
+            }
+        }
+    }
+
+    private static RSAPrivateCrtKey toKey(BigInteger p, BigInteger q, BigInteger e) {
+        BigInteger pMinus1 = p.subtract(BigInteger.ONE);
+        BigInteger qMinus1 = q.subtract(BigInteger.ONE);
+        BigInteger lambda = pMinus1.divide(pMinus1.gcd(qMinus1)).multiply(qMinus1);
+        BigInteger n = p.multiply(q);
+        BigInteger d = e.modInverse(lambda);
+        try {
+            return (RSAPrivateCrtKey) RSA_KEY_FAC.get().generatePrivate(RSACrtFromD.createCrtKeySpec(n, e, d, p));
+        } catch (GeneralSecurityException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static List<RSAPrivateCrtKey> read(Path file) throws IOException {
+        KeyCorpusFile corpus = KeyCorpusFile.open(file);
+        List<RSAPrivateCrtKey> keys = new ArrayList<>(corpus.size());
+        try {
+            for (int i = 0; i < corpus.size(); i++) {
+                keys.add((RSAPrivateCrtKey) RSA_KEY_FAC.get().generatePrivate(corpus.getKeySpec(i)));
+            }
+        } catch (GeneralSecurityException ex) {
+            throw new IOException("bad key in " + file, ex);
+        }
+        return keys;
+    }
+
+    private static void write(Path file, List<RSAPrivateCrtKey> keys) throws IOException {
+        Files.createDirectories(file.getParent());
+        Path temp = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+        KeyCorpusFile.write(temp, keys);
+        // concurrent runs may race to write the same corpus; they write identical contents
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Generate or load a corpus and print how long it took.
+     *
+     * @param args seed, keySize, count; default 1, 2048, 16.
+     */
+    public static void main(String[] args) throws Exception {
+        long seed = (args.length > 0) ? Long.parseLong(args[0]) : 1;
+        int keySize = (args.length > 1) ? Integer.parseInt(args[1]) : 2048;
+        int count = (args.length > 2) ? Integer.parseInt(args[2]) : 16;
+        long start = System.nanoTime();
+        List<RSAPrivateCrtKey> keys = new TestKeyCorpus().keys(seed, keySize, F4, count);
+        System.out.printf("%d %d-bit keys in %.1f ms%n", keys.size(), keySize, (System.nanoTime() - start) / 1e6);
+    }
+}
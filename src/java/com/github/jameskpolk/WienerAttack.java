@@ -0,0 +1,235 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2020. James K Polk
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package com.github.jameskpolk;
+
+import java.math.BigInteger;
+import java.security.KeyFactory;
+import java.security.interfaces.RSAPrivateCrtKey;
+import java.security.interfaces.RSAPublicKey;
+import java.security.spec.RSAPrivateCrtKeySpec;
+import java.security.spec.RSAPublicKeySpec;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Random;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Wiener's attack, for finding RSA keys whose private exponent is dangerously small.
+ * If d < n**(1/4) / 3 and q < p < 2q then k/d, where ed - 1 == k*phi(n), is one of the
+ * convergents of the continued fraction of e/n, so only about log(n) candidates need be
+ * tried. For a 2048-bit modulus that covers every d of up to about 510 bits.
+ * <p>
+ * Most candidates are rejected without a quadratic solve: k must divide ed - 1, the
+ * resulting phi must be even, and then (p+q)**2 - 4n, with p+q == n - phi + 1, must be a
+ * perfect square, which <code>RSACrtFromDMethod2.isPossibleSquare()</code> checks with a
+ * few table lookups. Only the survivors go to <code>RSACrtFromDMethod2.solveForP()</code>.
+ */
+public class WienerAttack {
+
+    /**
+     * One convergent k/d of a continued fraction.
+     */
+    public static class Convergent {
+        private final BigInteger k;
+        private final BigInteger d;
+
+        Convergent(BigInteger k, BigInteger d) {
+            this.k = k;
+            this.d = d;
+        }
+
+        public BigInteger getK() {
+            return k;
+        }
+
+        public BigInteger getD() {
+            return d;
+        }
+    }
+
+    /**
+     * Generates the convergents of a/b one partial quotient at a time, using the
+     * recurrence h(i) = q(i)h(i-1) + h(i-2) for both numerators and denominators.
+     */
+    private static class ConvergentIterator implements Iterator<Convergent> {
+        private BigInteger a;
+        private BigInteger b;
+        private BigInteger k = BigInteger.ONE;
+        private BigInteger kPrev = BigInteger.ZERO;
+        private BigInteger d = BigInteger.ZERO;
+        private BigInteger dPrev = BigInteger.ONE;
+
+        ConvergentIterator(BigInteger a, BigInteger b) {
+            this.a = a;
+            this.b = b;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return b.signum() != 0;
+        }
+
+        @Override
+        public Convergent next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            BigInteger[] qr = a.divideAndRemainder(b);
+            a = b;
+            b = qr[1];
+            BigInteger kNext = qr[0].multiply(k).add(kPrev);
+            BigInteger dNext = qr[0].multiply(d).add(dPrev);
+            kPrev = k;
+            dPrev = d;
+            k = kNext;
+            d = dNext;
+            return new Convergent(k, d);
+        }
+    }
+
+    /**
+     * Stream the convergents of the continued fraction of a/b, lazily and in order.
+     *
+     * @param a a non-negative numerator.
+     * @param b a positive denominator.
+     * @return the convergents, the last of which is a/b in lowest terms.
+     */
+    public static Stream<Convergent> convergents(BigInteger a, BigInteger b) {
+        if (a.signum() < 0 || b.signum() <= 0) {
+            throw new IllegalArgumentException("a must be non-negative and b positive");
+        }
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(new ConvergentIterator(a, b),
+                Spliterator.ORDERED | Spliterator.NONNULL), false);
+    }
+
+    /**
+     * Check whether a convergent k/d of e/n yields a factorization of n.
+     *
+     * @param n
+     * @param e
+     * @param candidate
+     * @return p if the candidate is correct, null otherwise.
+     */
+    public static BigInteger tryCandidate(BigInteger n, BigInteger e, Convergent candidate) {
+        BigInteger k = candidate.getK();
+        BigInteger d = candidate.getD();
+        if (k.signum() == 0 || !d.testBit(0)) {
+            return null;
+        }
+        BigInteger[] phi = e.multiply(d).subtract(BigInteger.ONE).divideAndRemainder(k);
+        if (phi[1].signum() != 0 || phi[0].testBit(0)) {
+            return null;
+        }
+        // p + q == n - phi + 1 and (p - q)**2 == (p + q)**2 - 4n
+        BigInteger sum = n.subtract(phi[0]).add(BigInteger.ONE);
+        if (!RSACrtFromDMethod2.isPossibleSquare(sum.multiply(sum).subtract(n.shiftLeft(2)))) {
+            return null;
+        }
+        BigInteger p = RSACrtFromDMethod2.solveForP(n, e, d, k);
+        if (p == null || p.compareTo(BigInteger.ONE) <= 0 || n.mod(p).signum() != 0) {
+            return null;
+        }
+        return p;
+    }
+
+    /**
+     * Run Wiener's attack on the public key (n, e).
+     *
+     * @param n
+     * @param e
+     * @return a prime factor of n if d is small enough to be found, null otherwise.
+     */
+    public static BigInteger findFactor(BigInteger n, BigInteger e) {
+        return convergents(e, n)
+                .map(candidate -> tryCandidate(n, e, candidate))
+                .filter(Objects::nonNull)
+                .findFirst()
+                .orElse(null);
+    }
+
+    /**
+     * Run <code>findFactor()</code> on every key in parallel.
+     *
+     * @param keys the public keys to check.
+     * @return the keys with a small private exponent, in input order, each with its factor
+     * even when no complete CRT key could be built.
+     */
+    public static List<FactoredModulus> scan(List<RSAPublicKey> keys) {
+        return IntStream.range(0, keys.size())
+                .parallel()
+                .mapToObj(i -> {
+                    RSAPublicKey key = keys.get(i);
+                    BigInteger factor = findFactor(key.getModulus(), key.getPublicExponent());
+                    return (factor != null) ? FactoredModulus.of(i, key, factor) : null;
+                })
+                .filter(Objects::nonNull)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Scan a test corpus into which one key with a small private exponent has been
+     * planted, and print the findings and the time per key.
+     *
+     * @param args bit length of the planted private exponent; default 500.
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+        int dBits = (args.length > 0) ? Integer.parseInt(args[0]) : 500;
+        KeyFactory kf = KeyFactory.getInstance("RSA");
+        List<RSAPublicKey> keys = new ArrayList<>();
+        for (RSAPrivateCrtKey key : new TestKeyCorpus().keys(1, 2048, TestKeyCorpus.F4, 16)) {
+            keys.add((RSAPublicKey) kf.generatePublic(new RSAPublicKeySpec(key.getModulus(), key.getPublicExponent())));
+        }
+        Random random = new InsecureRandom(1);
+        BigInteger p = BigInteger.probablePrime(1024, random);
+        BigInteger q = BigInteger.probablePrime(1024, random);
+        BigInteger phi = p.subtract(BigInteger.ONE).multiply(q.subtract(BigInteger.ONE));
+        BigInteger d;
+        do {
+            d = new BigInteger(dBits, random).setBit(dBits - 1).setBit(0);
+        } while (!d.gcd(phi).equals(BigInteger.ONE));
+        keys.add(5, (RSAPublicKey) kf.generatePublic(new RSAPublicKeySpec(p.multiply(q), d.modInverse(phi))));
+
+        long start = System.nanoTime();
+        List<FactoredModulus> found = scan(keys);
+        long elapsed = System.nanoTime() - start;
+        for (FactoredModulus factored : found) {
+            RSAPrivateCrtKeySpec keySpec = factored.getKeySpec();
+            System.out.printf("key %d: %s%n", factored.getIndex(), (keySpec != null)
+                    ? "d has " + keySpec.getPrivateExponent().bitLength() + " bits" : "factored, no CRT key");
+        }
+        System.out.printf("%d keys in %.1f ms, %.1f us per key%n", keys.size(), elapsed / 1e6,
+                elapsed / 1e3 / keys.size());
+    }
+}